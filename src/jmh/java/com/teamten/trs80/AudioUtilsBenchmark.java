@@ -0,0 +1,126 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ShortBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for reading, writing, and filtering whole recordings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class AudioUtilsBenchmark {
+    private byte[] mWavBytes;
+    private File mWavFile;
+    private File mOutputFile;
+    private short[] mSamples;
+    private PrintStream mOriginalOut;
+
+    @Setup
+    public void setUp() throws IOException, UnsupportedAudioFileException {
+        mOriginalOut = System.out;
+        System.setOut(BenchmarkData.nullPrintStream());
+
+        mWavBytes = BenchmarkData.loadResource(BenchmarkData.WAV_NAME);
+        mWavFile = File.createTempFile("benchmark-input", ".wav");
+        Files.write(mWavFile.toPath(), mWavBytes);
+        mOutputFile = File.createTempFile("benchmark-output", ".wav");
+        mSamples = AudioUtils.readWavFile(new ByteArrayInputStream(mWavBytes), BenchmarkData.WAV_NAME);
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(mOriginalOut);
+        mWavFile.delete();
+        mOutputFile.delete();
+    }
+
+    @Benchmark
+    public short[] readWavFile() throws IOException, UnsupportedAudioFileException {
+        return AudioUtils.readWavFile(new ByteArrayInputStream(mWavBytes), BenchmarkData.WAV_NAME);
+    }
+
+    /**
+     * Map the file and touch every sample, since mapping alone doesn't read anything.
+     */
+    @Benchmark
+    public long mapWavFile() throws IOException {
+        ShortBuffer samples = AudioUtils.mapWavFile(mWavFile);
+        long sum = 0;
+        for (int i = 0; i < samples.limit(); i++) {
+            sum += samples.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * The high-pass filter alone, a block at a time as the decoders use it.
+     */
+    @Benchmark
+    public short[] highPassFilter() {
+        HighPassFilter highPassFilter = new HighPassFilter(TapeReader.HIGH_PASS_FILTER_SIZE);
+        short[] block = new short[TapeReader.BLOCK_SIZE];
+        for (int frame = 0; frame < mSamples.length; frame += TapeReader.BLOCK_SIZE) {
+            int length = Math.min(TapeReader.BLOCK_SIZE, mSamples.length - frame);
+            System.arraycopy(mSamples, frame, block, 0, length);
+            highPassFilter.filter(block, 0, length);
+        }
+        return block;
+    }
+
+    /**
+     * The block-wise conditioning that the decoders actually use.
+     */
+    @Benchmark
+    public SignalBlock signalChain() {
+        ShortBuffer samples = ShortBuffer.wrap(mSamples);
+        SignalChain signalChain = SignalChain.create(false);
+        SignalBlock block = new SignalBlock(TapeReader.BLOCK_SIZE);
+        for (int frame = 0; frame < mSamples.length; frame += TapeReader.BLOCK_SIZE) {
+            signalChain.fill(block, samples, frame, Math.min(TapeReader.BLOCK_SIZE, mSamples.length - frame));
+        }
+        return block;
+    }
+
+    @Benchmark
+    public void writeWavFile() throws IOException {
+        AudioUtils.writeWavFile(mSamples, mOutputFile);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Loads the test recordings for the benchmarks.
+ */
+class BenchmarkData {
+    /**
+     * Name of the WAV resource, a high-speed recording of one Basic program.
+     */
+    static final String WAV_NAME = "high-1.wav";
+    /**
+     * Name of the decoded version of WAV_NAME.
+     */
+    static final String BIN_NAME = "high-1.bin";
+
+    /**
+     * Load a resource as bytes.
+     */
+    static byte[] loadResource(String name) {
+        try (InputStream is = BenchmarkData.class.getClassLoader().getResourceAsStream(name)) {
+            if (is == null) {
+                throw new IllegalStateException("Can't find resource " + name);
+            }
+            return ByteStreams.toByteArray(is);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * A stream that throws away everything, for silencing the progress messages
+     * of the code being benchmarked.
+     */
+    static PrintStream nullPrintStream() {
+        return new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                // Nothing.
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                // Nothing.
+            }
+        });
+    }
+}
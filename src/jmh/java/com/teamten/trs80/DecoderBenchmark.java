@@ -0,0 +1,118 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the decoders, in samples per second (the "samples" secondary result).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DecoderBenchmark {
+    private short[] mSamples;
+    /**
+     * The whole recording, already conditioned, so that we only time the decoders. Each block's
+     * history is zero instead of the end of the previous block, which doesn't matter for timing.
+     */
+    private final List<SignalBlock> mBlocks = new ArrayList<>();
+
+    /**
+     * Counts samples so that JMH reports samples per second.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class SampleCounter {
+        public long samples;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            samples = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException, UnsupportedAudioFileException {
+        byte[] wavBytes = BenchmarkData.loadResource(BenchmarkData.WAV_NAME);
+        mSamples = AudioUtils.readWavFile(new ByteArrayInputStream(wavBytes), BenchmarkData.WAV_NAME);
+
+        ShortBuffer samples = ShortBuffer.wrap(mSamples);
+        SignalChain signalChain = SignalChain.create(false);
+        for (int frame = 0; frame < mSamples.length; frame += TapeReader.BLOCK_SIZE) {
+            SignalBlock block = new SignalBlock(TapeReader.BLOCK_SIZE);
+            signalChain.fill(block, samples, frame, Math.min(TapeReader.BLOCK_SIZE, mSamples.length - frame));
+            mBlocks.add(block);
+        }
+    }
+
+    @Benchmark
+    public TapeDecoder lowSpeedTapeDecoder(SampleCounter counter) {
+        return decode(new LowSpeedTapeDecoder(), counter);
+    }
+
+    @Benchmark
+    public TapeDecoder highSpeedTapeDecoder(SampleCounter counter) {
+        return decode(new HighSpeedTapeDecoder(), counter);
+    }
+
+    /**
+     * Conditioning, both decoders, and numbering, as done by the command-line tool.
+     */
+    @Benchmark
+    public Results parsePrograms(SampleCounter counter) {
+        counter.samples += mSamples.length;
+        return new CassetteReader().parsePrograms(mSamples);
+    }
+
+    /**
+     * Give all blocks to the decoder, including after it has finished.
+     */
+    private TapeDecoder decode(TapeDecoder tapeDecoder, SampleCounter counter) {
+        Results results = new Results();
+        for (SignalBlock block : mBlocks) {
+            int frame = block.getStartFrame();
+            while (frame < block.getEndFrame()) {
+                frame = tapeDecoder.handleSamples(results, block, frame, block.getEndFrame());
+            }
+        }
+        counter.samples += mSamples.length;
+        return tapeDecoder;
+    }
+}
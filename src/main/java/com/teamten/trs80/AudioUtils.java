@@ -18,7 +18,6 @@ package com.teamten.trs80;
 
 import com.google.common.io.ByteStreams;
 
-import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
@@ -27,6 +26,13 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 
 /**
  * Utility methods for reading, writing, and processing audio files.
@@ -43,19 +49,9 @@ public class AudioUtils {
     public static void writeWavFile(short[] samples, File file) throws IOException {
         System.out.printf("Writing %s, %,d samples\n", file, samples.length);
 
-        // Convert to bytes.
-        byte[] bytes = new byte[samples.length*2];
-        for (int i = 0; i < samples.length; i++) {
-            short sample = samples[i];
-            bytes[i*2] = (byte) sample;
-            bytes[i*2 + 1] = (byte) (sample >> 8);
+        try (WavWriter wavWriter = new WavWriter(file)) {
+            wavWriter.write(samples, 0, samples.length);
         }
-
-        // Write file.
-        AudioFormat format = new AudioFormat(HZ,16,1,true,false);
-        ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bytes);
-        AudioInputStream audioInputStream = new AudioInputStream(byteArrayInputStream, format, samples.length);
-        AudioSystem.write(audioInputStream, AudioFileFormat.Type.WAVE, file);
     }
 
     /**
@@ -115,25 +111,96 @@ public class AudioUtils {
     }
 
     /**
-     * Simple high-pass filter.
+     * Memory-map a WAV file and return its samples. The returned buffer is a view directly
+     * on the file's data chunk, so no sample data is copied onto the heap, no matter how
+     * long the recording is.
      */
-    public static short[] highPassFilter(short[] samples, int size) {
-        short[] out = new short[samples.length];
-        long sum = 0;
-
-        for (int i = 0; i < samples.length; i++) {
-            sum += samples[i];
-            if (i >= size) {
-                sum -= samples[i - size];
+    public static ShortBuffer mapWavFile(File file) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("WAV file is too large to map: " + file);
+            }
+            // The mapping stays valid after the channel is closed.
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (buffer.remaining() < 12 || !readChunkId(buffer).equals("RIFF")) {
+            throw new IOException("Not a RIFF file: " + file);
+        }
+        // Skip RIFF size, we use the actual file size.
+        buffer.getInt();
+        if (!readChunkId(buffer).equals("WAVE")) {
+            throw new IOException("Not a WAVE file: " + file);
+        }
+
+        boolean sawFormat = false;
+        while (buffer.remaining() >= 8) {
+            String chunkId = readChunkId(buffer);
+            // Chunk sizes are unsigned. Clamp to what's actually in the file. Some recorders
+            // leave the data chunk size as zero or 0xFFFFFFFF while streaming, which means
+            // the data goes to the end of the file.
+            long chunkSize = buffer.getInt() & 0xFFFFFFFFL;
+            int chunkStart = buffer.position();
+            if (chunkId.equals("data") && (chunkSize == 0 || chunkSize == 0xFFFFFFFFL)) {
+                chunkSize = buffer.limit() - chunkStart;
+            }
+            int chunkEnd = (int) Math.min(chunkStart + chunkSize, buffer.limit());
+
+            if (chunkId.equals("fmt ")) {
+                if (chunkEnd - chunkStart < 16) {
+                    throw new IOException("Format chunk is too short: " + file);
+                }
+                int audioFormat = buffer.getShort() & 0xFFFF;
+                int channels = buffer.getShort() & 0xFFFF;
+                int sampleRate = buffer.getInt();
+                // Skip byte rate.
+                buffer.getInt();
+                int blockAlign = buffer.getShort() & 0xFFFF;
+                int bitsPerSample = buffer.getShort() & 0xFFFF;
+
+                // 0xFFFE is WAVE_FORMAT_EXTENSIBLE, which some tools use even for plain PCM.
+                if (audioFormat != 1 && audioFormat != 0xFFFE) {
+                    throw new IllegalStateException("File must be PCM_SIGNED");
+                }
+                if (channels != 1) {
+                    throw new IllegalStateException("File must be mono");
+                }
+                if (bitsPerSample != 16) {
+                    throw new IllegalStateException("File must be 16-bit audio");
+                }
+                if (sampleRate != HZ) {
+                    throw new IllegalStateException("File must be " + HZ + " Hz");
+                }
+                if (blockAlign != 2) {
+                    throw new IllegalStateException("File must be 2 bytes per frame");
+                }
+                sawFormat = true;
+            } else if (chunkId.equals("data")) {
+                if (!sawFormat) {
+                    throw new IOException("Data chunk before format chunk: " + file);
+                }
+                buffer.limit(chunkEnd);
+                // Slice loses the byte order, so set it again.
+                return buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
             }
 
-            // Subtract out the average of the last "size" samples (to estimate local DC component).
-            long value = samples[i] - sum/size;
-            // A high-pass filter can generate values outside the short range. Clamp it.
-            out[i] = (short) Math.min(Math.max(value, Short.MIN_VALUE), Short.MAX_VALUE);
+            // Chunks are padded to an even number of bytes.
+            buffer.position(Math.min(chunkEnd + (chunkEnd & 1), buffer.limit()));
         }
 
-        return out;
+        throw new IOException("No data chunk found: " + file);
+    }
+
+    /**
+     * Read a four-character RIFF chunk ID.
+     */
+    private static String readChunkId(ByteBuffer buffer) {
+        byte[] id = new byte[4];
+        buffer.get(id);
+        return new String(id, StandardCharsets.US_ASCII);
     }
 
     /**
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+import com.google.common.util.concurrent.Futures;
+import picocli.CommandLine;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Main class for reading many WAV files in one run. Inputs can be files, directories
+ * (searched for WAV files), or quoted glob patterns. The outputs of each file go to the
+ * output directory, prefixed by the file's name, which should follow the NAME-TAKE
+ * convention. Each file's log is written next to its outputs, and a summary table
+ * is printed at the end.
+ */
+public class BatchReader implements Runnable {
+    /**
+     * Base names that follow the NAME-TAKE convention.
+     */
+    private static final Pattern NAME_TAKE = Pattern.compile(".+-[0-9]+");
+
+    @CommandLine.Parameters(index = "0", paramLabel = "OUTPUT_DIR", description = "Output directory.")
+    private String mOutputDir;
+
+    @CommandLine.Parameters(index = "1..*", paramLabel = "INPUT",
+            description = "Input WAV files, directories, or glob patterns.")
+    private List<String> mInputs = new ArrayList<>();
+
+    @CommandLine.Option(names = { "--jobs" }, description = "Files to decode at once (default: number of cores).")
+    private int mJobs = Runtime.getRuntime().availableProcessors();
+
+    @CommandLine.Option(names = { "--normalize-gain" }, description = "Normalize the level of quiet recordings.")
+    private boolean mNormalizeGain = false;
+
+    @CommandLine.Option(names = { "--no-skip-silence" },
+            description = "Decode long silences too, instead of skipping them while searching for a program.")
+    private boolean mNoSkipSilence = false;
+
+    @CommandLine.Option(names = { "--max-warnings" }, paramLabel = "COUNT",
+            description = "Maximum number of bad bits to log for each program (default: all).")
+    private int mMaxWarnings = Integer.MAX_VALUE;
+
+    @CommandLine.Option(names = { "--json-log" }, description = "Write the logs as JSON lines.")
+    private boolean mJsonLog = false;
+
+    @CommandLine.Option(names = { "--cache" }, paramLabel = "DIR",
+            description = "Keep decoded tapes in this directory to skip decoding them again.")
+    private String mCacheDir;
+
+    @CommandLine.Option(names = { "--cache-max-size" }, paramLabel = "MB",
+            description = "Maximum size of the cache (default: 1000 MB).")
+    private long mCacheMaxMegabytes = 1000;
+
+    @CommandLine.Option(names = { "--cache-max-age" }, paramLabel = "DAYS",
+            description = "Delete cached tapes not used in this many days (default: 90).")
+    private int mCacheMaxAgeDays = 90;
+
+    private DecodeCache mCache;
+
+    /**
+     * Result of reading one file, for the summary.
+     */
+    private static class Summary {
+        private final File mInputFile;
+        private final String mOutputPrefix;
+        private int mTracks;
+        private int mPrograms;
+        private int mBadSections;
+        private int mOutputErrors;
+        private double mSeconds;
+        private String mError;
+
+        Summary(File inputFile, String outputPrefix) {
+            mInputFile = inputFile;
+            mOutputPrefix = outputPrefix;
+        }
+    }
+
+    public static void main(String[] args) {
+        // Parse command-line parameters.
+        CommandLine.run(new BatchReader(), args);
+    }
+
+    @Override
+    public void run() {
+        List<File> inputFiles;
+        try {
+            inputFiles = findInputFiles();
+            if (mCacheDir != null) {
+                mCache = new DecodeCache(new File(mCacheDir), mCacheMaxMegabytes*1024*1024, mCacheMaxAgeDays);
+            }
+        } catch (IOException e) {
+            System.err.println("I/O exception: " + e.getMessage());
+            System.exit(1);
+            return; // Silence error.
+        }
+        File outputDir = new File(mOutputDir);
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            System.err.println("Can't create output directory " + outputDir);
+            System.exit(1);
+        }
+
+        // Files are decoded on their own threads, limited to the number of jobs (the semaphore
+        // matters for virtual threads, which aren't pooled). Their output files are all written
+        // on one shared pool.
+        ExecutorService fileExecutor = createFileExecutor(mJobs);
+        ExecutorService outputExecutor = OutputStage.createExecutor(Runtime.getRuntime().availableProcessors());
+        Semaphore jobs = new Semaphore(mJobs);
+        Set<String> outputPrefixes = new HashSet<>();
+        List<Future<Summary>> futures = new ArrayList<>();
+        for (File inputFile : inputFiles) {
+            String outputPrefix = getOutputPrefix(outputDir, inputFile);
+            Summary summary = new Summary(inputFile, outputPrefix);
+            if (!outputPrefixes.add(outputPrefix)) {
+                summary.mError = "Another input has the same name";
+                futures.add(Futures.immediateFuture(summary));
+                continue;
+            }
+            futures.add(fileExecutor.submit(() -> {
+                jobs.acquireUninterruptibly();
+                try {
+                    readFile(summary, outputExecutor);
+                } finally {
+                    jobs.release();
+                }
+                return summary;
+            }));
+        }
+
+        List<Summary> summaries = new ArrayList<>();
+        for (Future<Summary> future : futures) {
+            summaries.add(Futures.getUnchecked(future));
+        }
+        fileExecutor.shutdown();
+        outputExecutor.shutdown();
+
+        boolean success = printSummary(summaries);
+        if (!success) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Read one file and fill in its summary.
+     */
+    private void readFile(Summary summary, ExecutorService outputExecutor) {
+        CassetteReader cassetteReader = new CassetteReader();
+        cassetteReader.setNormalizeGain(mNormalizeGain);
+        cassetteReader.setSkipSilence(!mNoSkipSilence);
+        cassetteReader.setMaxWarnings(mMaxWarnings);
+        cassetteReader.setJsonLog(mJsonLog);
+        cassetteReader.setCache(mCache);
+
+        long beforeTime = System.nanoTime();
+        try (PrintStream out = new PrintStream(new FileOutputStream(summary.mOutputPrefix + (mJsonLog ? "log.jsonl" : "log.txt")))) {
+            Results results = cassetteReader.readTape(summary.mInputFile, summary.mOutputPrefix, outputExecutor, out);
+            List<Program> programs = results.getPrograms();
+            summary.mPrograms = programs.size();
+            summary.mTracks = programs.isEmpty() ? 0 : programs.get(programs.size() - 1).getTrack();
+            summary.mBadSections = results.getBadSections().size();
+            for (Program program : programs) {
+                summary.mBadSections += program.getBadSections().size();
+            }
+            summary.mOutputErrors = results.getOutputErrors().size();
+        } catch (IOException | RuntimeException e) {
+            summary.mError = e.toString();
+        }
+        summary.mSeconds = (System.nanoTime() - beforeTime)/1e9;
+    }
+
+    /**
+     * Print the summary table.
+     *
+     * @return whether all files were read and written without errors.
+     */
+    private static boolean printSummary(List<Summary> summaries) {
+        int width = "File".length();
+        for (Summary summary : summaries) {
+            width = Math.max(width, summary.mInputFile.getName().length());
+        }
+        String format = "%-" + width + "s %6s %8s %5s %6s %8s  %s%n";
+
+        boolean success = true;
+        int programCount = 0;
+        double totalSeconds = 0;
+        System.out.printf(format, "File", "Tracks", "Programs", "Bad", "Errors", "Seconds", "Status");
+        for (Summary summary : summaries) {
+            String status = summary.mError != null ? summary.mError
+                    : summary.mOutputErrors > 0 ? "Output errors, see log"
+                    : NAME_TAKE.matcher(getBaseName(summary.mInputFile)).matches() ? "OK"
+                    : "OK (name isn't NAME-TAKE)";
+            success &= summary.mError == null && summary.mOutputErrors == 0;
+            System.out.printf(format, summary.mInputFile.getName(), summary.mTracks, summary.mPrograms,
+                    summary.mBadSections, summary.mOutputErrors, String.format("%.1f", summary.mSeconds), status);
+            programCount += summary.mPrograms;
+            totalSeconds += summary.mSeconds;
+        }
+        System.out.printf("%,d files, %,d programs, %.1f seconds of decoding%n",
+                summaries.size(), programCount, totalSeconds);
+
+        return success;
+    }
+
+    /**
+     * Expand the input arguments into a sorted list of files.
+     */
+    private List<File> findInputFiles() throws IOException {
+        List<File> inputFiles = new ArrayList<>();
+
+        for (String input : mInputs) {
+            File file = new File(input);
+            if (file.isDirectory()) {
+                inputFiles.addAll(findWavFiles(file.toPath(), path -> true));
+            } else if (file.exists()) {
+                inputFiles.add(file);
+            } else {
+                // Glob pattern. Search from the deepest directory without wildcards.
+                Path root = Paths.get("");
+                Path pattern = Paths.get(input);
+                for (Path part : pattern) {
+                    if (part.toString().matches(".*[*?\\[{].*")) {
+                        break;
+                    }
+                    root = root.resolve(part);
+                }
+                if (pattern.isAbsolute()) {
+                    root = pattern.getRoot().resolve(root);
+                }
+                PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + input);
+                if (Files.isDirectory(root)) {
+                    inputFiles.addAll(findWavFiles(root, matcher));
+                }
+            }
+        }
+
+        return inputFiles.stream().distinct().sorted().collect(Collectors.toList());
+    }
+
+    /**
+     * All WAV files under the directory that match the matcher.
+     */
+    private static List<File> findWavFiles(Path dir, PathMatcher matcher) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            return paths
+                    .filter(path -> Files.isRegularFile(path))
+                    .filter(path -> path.getFileName().toString().toLowerCase(Locale.US).endsWith(".wav"))
+                    .filter(matcher::matches)
+                    .map(Path::toFile)
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * The output prefix for a file, so that a NAME-TAKE.wav input generates NAME-TAKE-TRACK-COPY outputs.
+     */
+    private static String getOutputPrefix(File outputDir, File inputFile) {
+        return new File(outputDir, getBaseName(inputFile) + "-").getPath();
+    }
+
+    /**
+     * The file's name without its extension.
+     */
+    private static String getBaseName(File file) {
+        return com.google.common.io.Files.getNameWithoutExtension(file.getName());
+    }
+
+    /**
+     * Create an executor for decoding files. Use a virtual thread per file when the JDK has them,
+     * otherwise a pool with one thread per job.
+     */
+    private static ExecutorService createFileExecutor(int jobs) {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(jobs);
+        }
+    }
+}
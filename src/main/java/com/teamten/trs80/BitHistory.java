@@ -16,166 +16,76 @@
 
 package com.teamten.trs80;
 
-import com.teamten.image.ImageUtils;
-
-import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.image.BufferedImage;
-import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.Deque;
-
 /**
- * Keeps a (bounded) queue of history of recent bits so they can be dumped to an image when
- * a bit can't be decoded.
+ * Keeps a bounded ring of recent bits so they can be dumped to an image when a bit can't
+ * be decoded. The bits are kept in primitive arrays, so adding one doesn't allocate.
  */
 public class BitHistory {
-    private static final Color ZERO_BIT_COLOR = new Color(50, 50, 50);
-    private static final Color ONE_BIT_COLOR = new Color(100, 100, 100);
-    private static final Color START_BIT_COLOR = new Color(20, 150, 20);
-    private static final Color BAD_BIT_COLOR = new Color(150, 20, 20);
-    private static final Color MISSING_COLOR = Color.BLACK;
-    public static final Color LINE_COLOR = Color.WHITE;
-    private final int mMaxSize;
-    private final Deque<BitData> mHistory = new ArrayDeque<>();
-
+    private final int[] mStartFrames;
+    private final int[] mEndFrames;
     /**
-     * Creates an history with a max number of bits to remember.
+     * Ordinals of BitType.
      */
-    public BitHistory(int maxSize) {
-        mMaxSize = maxSize;
-    }
-
+    private final byte[] mBitTypes;
     /**
-     * Creates a deep copy of the bit history.
+     * Index of the next bit to write, which is also the oldest bit once the ring is full.
      */
-    public BitHistory(BitHistory bitHistory) {
-        mMaxSize = bitHistory.mMaxSize;
-        mHistory.addAll(bitHistory.mHistory);
-    }
+    private int mNext = 0;
+    private int mSize = 0;
+    private BitTimeline mTimeline = null;
 
     /**
-     * Add a bit to the history.
+     * Creates an history with a max number of bits to remember.
      */
-    public void add(BitData bitData) {
-        mHistory.add(bitData);
-        while (mHistory.size() > mMaxSize) {
-            mHistory.removeFirst();
-        }
+    public BitHistory(int maxSize) {
+        mStartFrames = new int[maxSize];
+        mEndFrames = new int[maxSize];
+        mBitTypes = new byte[maxSize];
     }
 
     /**
-     * Dump the last "maxSize" bits to an image.
-     * @param samples all samples of the file. The numbers in the BitData objects are indices into this array.
-     * @param threshold a Y value where a line should be drawn (both positive and negative). Use 0 for none.
-     * @param imagePathname output image pathname.
+     * If not null, also add all bits from now on to this timeline.
      */
-    public void dump(short[] samples, int threshold, String imagePathname) throws IOException {
-        // Create image.
-        int width = 1200;
-        int height = 400;
-        ImageUtils.setLogger(null);
-        BufferedImage image = ImageUtils.makeWhite(width, height);
-        Graphics2D g = ImageUtils.createGraphics(image);
-        draw(samples, threshold, width, height, g);
-        ImageUtils.save(image, imagePathname);
+    void setTimeline(BitTimeline timeline) {
+        mTimeline = timeline;
     }
 
     /**
-     * Draw the history into a graphics context.
-     * @param samples all samples of the file. The numbers in the BitData objects are indices into this array.
-     * @param threshold a Y value where a line should be drawn (both positive and negative). Use 0 for none.
-     * @param width width of canvas.
-     * @param height height of canvas.
-     * @param g graphics context.
+     * Add a bit to the history, forgetting the oldest one if it's full.
+     *
+     * @param startFrame the first frame, inclusive.
+     * @param endFrame the last frame, inclusive.
+     * @param bitType what kind of bit it is.
      */
-    public void draw(short[] samples, int threshold, int width, int height, Graphics2D g) {
-        // Fill the background.
-        g.setColor(MISSING_COLOR);
-        g.fillRect(0, 0, width, height);
-
-        // Find the bounds of the samples to draw.
-        int minFrame = Integer.MAX_VALUE;
-        int maxFrame = Integer.MIN_VALUE;
-        for (BitData bitData : mHistory) {
-            minFrame = Math.min(Math.min(bitData.getStartFrame(), bitData.getEndFrame()), minFrame);
-            maxFrame = Math.max(Math.max(bitData.getStartFrame(), bitData.getEndFrame()), maxFrame);
-        }
-        // Show a bit past the error point.
-        maxFrame = Math.min(maxFrame + 100, samples.length - 1);
-        int frameWidth = maxFrame - minFrame + 1;
-
-        // Draw all backgrounds.
-        for (BitData bitData : mHistory) {
-            // Compute the background color for this bit.
-            Color backgroundColor;
-            switch (bitData.getBitType()) {
-                case ZERO:
-                    backgroundColor = ZERO_BIT_COLOR;
-                    break;
-
-                case ONE:
-                    backgroundColor = ONE_BIT_COLOR;
-                    break;
-
-                case START:
-                    backgroundColor = START_BIT_COLOR;
-                    break;
-
-                default:
-                case BAD:
-                    backgroundColor = BAD_BIT_COLOR;
-                    break;
-            }
-
-            // Map to image.
-            int startX = (bitData.getStartFrame() - minFrame)*width/frameWidth;
-            startX = clamp(startX, 0, width - 1);
-            int endX = (bitData.getEndFrame() - minFrame)*width/frameWidth;
-            endX = clamp(endX, 0, width - 1);
-
-            // Draw background.
-            g.setColor(backgroundColor);
-            g.fillRect(startX, 0, endX - startX, height);
-        }
-
-        // Draw signal.
-        int lastX = -1;
-        int lastY = -1;
-        g.setColor(LINE_COLOR);
-        for (int frame = minFrame; frame < maxFrame; frame++) {
-            // Draw line.
-            int x = (frame - minFrame)*width/frameWidth;
-            x = clamp(x, 0, width - 1);
-
-            // *Must* cast to int first or -32768 won't negate properly.
-            int y = -(int)samples[frame]*(height/2)/32768 + height/2;
-            y = clamp(y, 0, height - 1);
-
-            if (lastX != -1) {
-                g.drawLine(lastX, lastY, x, y);
-            }
-
-            lastX = x;
-            lastY = y;
-        }
-
-        // Draw grid.
-        g.setColor(Color.GRAY);
-        int y = height/2;
-        g.drawLine(0, y, width - 1, y);
-        if (threshold != 0) {
-            y = threshold*(height/2)/32768 + height/2;
-            g.drawLine(0, y, width - 1, y);
-            y = -threshold*(height/2)/32768 + height/2;
-            g.drawLine(0, y, width - 1, y);
+    public void add(int startFrame, int endFrame, BitType bitType) {
+        mStartFrames[mNext] = startFrame;
+        mEndFrames[mNext] = endFrame;
+        mBitTypes[mNext] = (byte) bitType.ordinal();
+        mNext = mNext + 1 == mBitTypes.length ? 0 : mNext + 1;
+        mSize = Math.min(mSize + 1, mBitTypes.length);
+        if (mTimeline != null) {
+            mTimeline.add(startFrame, endFrame, bitType);
         }
     }
 
     /**
-     * Clamp x to min and max inclusive.
+     * Copy the bits in the history, oldest first.
      */
-    private int clamp(int value, int min, int max) {
-        return Math.max(min, Math.min(value, max));
+    public BitSection snapshot() {
+        int[] startFrames = new int[mSize];
+        int[] endFrames = new int[mSize];
+        byte[] bitTypes = new byte[mSize];
+
+        // The oldest bit is at mNext when the ring is full, and at 0 until then.
+        int first = (mNext - mSize + mBitTypes.length) % mBitTypes.length;
+        int firstLength = Math.min(mSize, mBitTypes.length - first);
+        System.arraycopy(mStartFrames, first, startFrames, 0, firstLength);
+        System.arraycopy(mEndFrames, first, endFrames, 0, firstLength);
+        System.arraycopy(mBitTypes, first, bitTypes, 0, firstLength);
+        System.arraycopy(mStartFrames, 0, startFrames, firstLength, mSize - firstLength);
+        System.arraycopy(mEndFrames, 0, endFrames, firstLength, mSize - firstLength);
+        System.arraycopy(mBitTypes, 0, bitTypes, firstLength, mSize - firstLength);
+
+        return new BitSection(startFrames, endFrames, bitTypes);
     }
 }
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+import com.teamten.image.ImageUtils;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Immutable run of consecutive bits, such as the bits leading up to a bad one. Can be
+ * dumped to an image or drawn in the GUI.
+ */
+public class BitSection {
+    private static final Color ZERO_BIT_COLOR = new Color(50, 50, 50);
+    private static final Color ONE_BIT_COLOR = new Color(100, 100, 100);
+    private static final Color START_BIT_COLOR = new Color(20, 150, 20);
+    private static final Color BAD_BIT_COLOR = new Color(150, 20, 20);
+    private static final Color MISSING_COLOR = Color.BLACK;
+    public static final Color LINE_COLOR = Color.WHITE;
+    private static final BitType[] BIT_TYPES = BitType.values();
+    private final int[] mStartFrames;
+    private final int[] mEndFrames;
+    /**
+     * Ordinals of BitType.
+     */
+    private final byte[] mBitTypes;
+
+    /**
+     * Takes ownership of the arrays, which must all have the same length.
+     *
+     * @param startFrames the first frame of each bit, inclusive.
+     * @param endFrames the last frame of each bit, inclusive.
+     * @param bitTypes the ordinal of the BitType of each bit.
+     */
+    BitSection(int[] startFrames, int[] endFrames, byte[] bitTypes) {
+        mStartFrames = startFrames;
+        mEndFrames = endFrames;
+        mBitTypes = bitTypes;
+    }
+
+    /**
+     * Number of bits in the section.
+     */
+    public int size() {
+        return mBitTypes.length;
+    }
+
+    public int getStartFrame(int index) {
+        return mStartFrames[index];
+    }
+
+    public int getEndFrame(int index) {
+        return mEndFrames[index];
+    }
+
+    public BitType getBitType(int index) {
+        return BIT_TYPES[mBitTypes[index]];
+    }
+
+    /**
+     * Write the bits in a form that {@link #read(DataInput)} reads back.
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(size());
+        for (int i = 0; i < size(); i++) {
+            out.writeInt(mStartFrames[i]);
+            out.writeInt(mEndFrames[i]);
+            out.writeByte(mBitTypes[i]);
+        }
+    }
+
+    /**
+     * Read bits written by {@link #write(DataOutput)}.
+     */
+    static BitSection read(DataInput in) throws IOException {
+        int size = in.readInt();
+        int[] startFrames = new int[size];
+        int[] endFrames = new int[size];
+        byte[] bitTypes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            startFrames[i] = in.readInt();
+            endFrames[i] = in.readInt();
+            bitTypes[i] = in.readByte();
+            if (bitTypes[i] < 0 || bitTypes[i] >= BIT_TYPES.length) {
+                throw new IOException("Invalid bit type " + bitTypes[i]);
+            }
+        }
+        return new BitSection(startFrames, endFrames, bitTypes);
+    }
+
+    /**
+     * Dump the bits to an image, with the samples as recorded.
+     * @param sampleWindows samples of the file. The frames of the bits are indices into them.
+     * @param threshold a Y value where a line should be drawn (both positive and negative). Use 0 for none.
+     * @param imagePathname output image pathname.
+     */
+    public void dump(SampleWindows sampleWindows, int threshold, String imagePathname) throws IOException {
+        // Create image.
+        int width = 1200;
+        int height = 400;
+        ImageUtils.setLogger(null);
+        BufferedImage image = ImageUtils.makeWhite(width, height);
+        Graphics2D g = ImageUtils.createGraphics(image);
+        draw(sampleWindows, false, threshold, width, height, g);
+        ImageUtils.save(image, imagePathname);
+    }
+
+    /**
+     * Draw the bits into a graphics context.
+     * @param sampleWindows samples of the file. The frames of the bits are indices into them.
+     * @param filtered whether to draw the samples as filtered for the decoders instead of as recorded.
+     * @param threshold a Y value where a line should be drawn (both positive and negative). Use 0 for none.
+     * @param width width of canvas.
+     * @param height height of canvas.
+     * @param g graphics context.
+     */
+    public void draw(SampleWindows sampleWindows, boolean filtered, int threshold, int width, int height,
+                     Graphics2D g) {
+
+        // Fill the background.
+        g.setColor(MISSING_COLOR);
+        g.fillRect(0, 0, width, height);
+
+        // Find the bounds of the samples to draw.
+        int minFrame = Integer.MAX_VALUE;
+        int maxFrame = Integer.MIN_VALUE;
+        for (int i = 0; i < size(); i++) {
+            minFrame = Math.min(Math.min(mStartFrames[i], mEndFrames[i]), minFrame);
+            maxFrame = Math.max(Math.max(mStartFrames[i], mEndFrames[i]), maxFrame);
+        }
+        // Show a bit past the error point.
+        maxFrame = Math.min(maxFrame + 100, sampleWindows.getFrameCount() - 1);
+        int frameWidth = maxFrame - minFrame + 1;
+
+        // Only read the samples that are drawn.
+        short[] samples = filtered
+                ? sampleWindows.getFiltered(minFrame, maxFrame)
+                : sampleWindows.getOriginal(minFrame, maxFrame);
+
+        // Draw all backgrounds.
+        for (int i = 0; i < size(); i++) {
+            // Compute the background color for this bit.
+            Color backgroundColor;
+            switch (getBitType(i)) {
+                case ZERO:
+                    backgroundColor = ZERO_BIT_COLOR;
+                    break;
+
+                case ONE:
+                    backgroundColor = ONE_BIT_COLOR;
+                    break;
+
+                case START:
+                    backgroundColor = START_BIT_COLOR;
+                    break;
+
+                default:
+                case BAD:
+                    backgroundColor = BAD_BIT_COLOR;
+                    break;
+            }
+
+            // Map to image.
+            int startX = (mStartFrames[i] - minFrame)*width/frameWidth;
+            startX = clamp(startX, 0, width - 1);
+            int endX = (mEndFrames[i] - minFrame)*width/frameWidth;
+            endX = clamp(endX, 0, width - 1);
+
+            // Draw background.
+            g.setColor(backgroundColor);
+            g.fillRect(startX, 0, endX - startX, height);
+        }
+
+        // Draw signal.
+        int lastX = -1;
+        int lastY = -1;
+        g.setColor(LINE_COLOR);
+        for (int frame = minFrame; frame < maxFrame; frame++) {
+            // Draw line.
+            int x = (frame - minFrame)*width/frameWidth;
+            x = clamp(x, 0, width - 1);
+
+            // *Must* cast to int first or -32768 won't negate properly.
+            int y = -(int)samples[frame - minFrame]*(height/2)/32768 + height/2;
+            y = clamp(y, 0, height - 1);
+
+            if (lastX != -1) {
+                g.drawLine(lastX, lastY, x, y);
+            }
+
+            lastX = x;
+            lastY = y;
+        }
+
+        // Draw grid.
+        g.setColor(Color.GRAY);
+        int y = height/2;
+        g.drawLine(0, y, width - 1, y);
+        if (threshold != 0) {
+            y = threshold*(height/2)/32768 + height/2;
+            g.drawLine(0, y, width - 1, y);
+            y = -threshold*(height/2)/32768 + height/2;
+            g.drawLine(0, y, width - 1, y);
+        }
+    }
+
+    /**
+     * Clamp x to min and max inclusive.
+     */
+    private int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(value, max));
+    }
+}
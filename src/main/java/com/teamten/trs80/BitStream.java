@@ -17,51 +17,143 @@
 package com.teamten.trs80;
 
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
 
-public class BitStream<T> implements Iterable<Boolean> {
-    private byte[] mBytes;
+/**
+ * Growable sequence of bits, most significant bit first, packed into 64-bit words. Any bit
+ * can have an extra object attached to it. Runs of up to 64 bits can be appended and read
+ * at once, so copying doesn't go a bit at a time.
+ */
+public class BitStream<T> {
+    private static final int WORD_BITS = 64;
+    private long[] mWords;
     private int mBitCount;
-    private Map<Integer,T> mExtras = new HashMap<>();
+    /**
+     * Indices of the bits that have extras, in increasing order, and their extras.
+     */
+    private int[] mExtraIndices = new int[16];
+    private Object[] mExtras = new Object[16];
+    private int mExtraCount = 0;
 
     public BitStream() {
-        mBytes = new byte[1024];
+        mWords = new long[128];
         mBitCount = 0;
     }
 
     /**
-     * Add a bit, MSb first.
+     * Reads bits in order without boxing them.
      */
-    public void addBit(boolean value) {
-        int byteIndex = mBitCount/8;
-        if (byteIndex == mBytes.length) {
-            mBytes = Arrays.copyOf(mBytes, mBytes.length*2);
+    public class Cursor {
+        private int mIndex;
+
+        private Cursor(int index) {
+            mIndex = index;
+        }
+
+        /**
+         * Index of the next bit to be read.
+         */
+        public int getIndex() {
+            return mIndex;
         }
 
-        if (value) {
-            int bitIndex = 7 - mBitCount%8;
-            mBytes[byteIndex] |= 1 << bitIndex;
+        public boolean hasNext() {
+            return mIndex < mBitCount;
         }
 
-        mBitCount += 1;
+        public boolean nextBit() {
+            return getBit(mIndex++);
+        }
+
+        /**
+         * Read the next "count" bits (at most 64), the first in the most significant position.
+         */
+        public long next(int count) {
+            long value = get(mIndex, count);
+            mIndex += count;
+            return value;
+        }
+    }
+
+    /**
+     * Add a bit, MSb first.
+     */
+    public void addBit(boolean value) {
+        append(value ? 1 : 0, 1);
     }
 
     public void addBit(boolean value, T extra) {
         if (extra != null) {
-            mExtras.put(mBitCount, extra);
+            if (mExtraCount == mExtraIndices.length) {
+                mExtraIndices = Arrays.copyOf(mExtraIndices, mExtraCount*2);
+                mExtras = Arrays.copyOf(mExtras, mExtraCount*2);
+            }
+            mExtraIndices[mExtraCount] = mBitCount;
+            mExtras[mExtraCount] = extra;
+            mExtraCount++;
         }
         addBit(value);
     }
 
+    /**
+     * Add the low "count" bits (at most 64) of the value, the most significant first.
+     */
+    public void append(long value, int count) {
+        if (count == 0) {
+            return;
+        }
+        int wordIndex = mBitCount/WORD_BITS;
+        if (wordIndex + 1 >= mWords.length) {
+            mWords = Arrays.copyOf(mWords, mWords.length*2);
+        }
+
+        long bits = count == WORD_BITS ? value : value & ((1L << count) - 1);
+        int free = WORD_BITS - mBitCount%WORD_BITS;
+        if (count <= free) {
+            mWords[wordIndex] |= bits << (free - count);
+        } else {
+            int overflow = count - free;
+            mWords[wordIndex] |= bits >>> overflow;
+            mWords[wordIndex + 1] |= bits << (WORD_BITS - overflow);
+        }
+        mBitCount += count;
+    }
+
+    /**
+     * Read "count" bits (at most 64) starting at the index, the first in the most significant position.
+     */
+    public long get(int index, int count) {
+        if (index < 0 || count < 0 || count > WORD_BITS || index + count > mBitCount) {
+            throw new IndexOutOfBoundsException("Bits " + index + " to " + (index + count) + " of " + mBitCount);
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        int wordIndex = index/WORD_BITS;
+        int available = WORD_BITS - index%WORD_BITS;
+        long value;
+        if (count <= available) {
+            value = mWords[wordIndex] >>> (available - count);
+        } else {
+            int overflow = count - available;
+            value = (mWords[wordIndex] << overflow) | (mWords[wordIndex + 1] >>> (WORD_BITS - overflow));
+        }
+        return count == WORD_BITS ? value : value & ((1L << count) - 1);
+    }
+
     public void clear() {
-        Arrays.fill(mBytes, (byte) 0);
+        Arrays.fill(mWords, 0, (mBitCount + WORD_BITS - 1)/WORD_BITS, 0);
         mBitCount = 0;
+        Arrays.fill(mExtras, 0, mExtraCount, null);
+        mExtraCount = 0;
     }
 
     public byte[] toByteArray() {
-        return Arrays.copyOf(mBytes, getByteCount());
+        byte[] bytes = new byte[getByteCount()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = getByte(i);
+        }
+        return bytes;
     }
 
     public int getByteCount() {
@@ -72,51 +164,126 @@ public class BitStream<T> implements Iterable<Boolean> {
         return mBitCount;
     }
 
+    /**
+     * Get the byte made of bits 8*index to 8*index + 7. Missing bits at the end are zero,
+     * and bytes past the end are zero.
+     */
     public byte getByte(int index) {
-        return mBytes[index];
+        if (index < 0) {
+            throw new IndexOutOfBoundsException("Byte " + index + " of " + getByteCount());
+        }
+        long bitIndex = index*8L;
+        if (bitIndex >= mBitCount) {
+            return 0;
+        }
+        int count = (int) Math.min(8, mBitCount - bitIndex);
+        return (byte) (get((int) bitIndex, count) << (8 - count));
     }
 
     public boolean getBit(int index) {
-        int byteIndex = index/8;
-        int bitIndex = 7 - index%8;
-
-        return (mBytes[byteIndex] & (1 << bitIndex)) != 0;
+        if (index < 0 || index >= mBitCount) {
+            throw new IndexOutOfBoundsException("Bit " + index + " of " + mBitCount);
+        }
+        return (mWords[index/WORD_BITS] << (index%WORD_BITS)) < 0;
     }
 
+    @SuppressWarnings("unchecked")
     public T getExtra(int index) {
-        return mExtras.get(index);
+        int i = Arrays.binarySearch(mExtraIndices, 0, mExtraCount, index);
+        return i >= 0 ? (T) mExtras[i] : null;
     }
 
-    public Iterator<Boolean> iterator() {
-        return new Iterator<Boolean >() {
-            private int mBitIndex = 0;
-
-            @Override
-            public boolean hasNext() {
-                return mBitIndex < mBitCount;
-            }
-
-            @Override
-            public Boolean next() {
-                return getBit(mBitIndex++);
-            }
-        };
+    /**
+     * Get a cursor at the first bit.
+     */
+    public Cursor cursor() {
+        return new Cursor(0);
     }
 
     /**
      * Deletes bits starting with the one at startBitIndex,
      * and every "stride" bits after that. For example, a stride
-     * of 1 deletes every bit. Returns a new BitStream.
+     * of 1 deletes every bit. A negative startBitIndex deletes
+     * the bits that would follow it. Returns a new BitStream.
+     *
+     * <p>The bits are copied a word at a time, with the deleted
+     * ones squeezed out of each word by masking and shifting.
      */
     public BitStream<T> deleteBits(int startBitIndex, int stride) {
+        if (stride < 1) {
+            throw new IllegalArgumentException("Stride must be positive: " + stride);
+        }
+        if (startBitIndex < 0) {
+            startBitIndex = Math.floorMod(startBitIndex, stride);
+        }
         BitStream<T> newBitStream = new BitStream<>();
 
-        for (int index = 0; index < mBitCount; index++) {
-            if (index < startBitIndex || (index - startBitIndex) % stride != 0) {
-                newBitStream.addBit(getBit(index), getExtra(index));
+        // Copy the bits before the first deleted one. With a stride of 1 that's all.
+        int prefixCount = Math.min(startBitIndex, mBitCount);
+        copyBits(newBitStream, 0, prefixCount);
+        for (int index = prefixCount; index < mBitCount && stride > 1; index += WORD_BITS) {
+            // Left-align the word, then delete its bits from the last one so that the earlier
+            // ones don't move: keep the bits before it and shift the bits after it up by one.
+            int count = Math.min(WORD_BITS, mBitCount - index);
+            long word = get(index, count) << (WORD_BITS - count);
+            int firstOffset = Math.floorMod(startBitIndex - index, stride);
+            int keptCount = count;
+            if (firstOffset < count) {
+                for (int offset = firstOffset + (count - 1 - firstOffset)/stride*stride;
+                     offset >= firstOffset; offset -= stride) {
+
+                    long before = offset == 0 ? 0 : word & (-1L << (WORD_BITS - offset));
+                    long after = (word << 1) & (-1L >>> offset);
+                    word = before | after;
+                    keptCount--;
+                }
+            }
+            if (keptCount > 0) {
+                newBitStream.append(word >>> (WORD_BITS - keptCount), keptCount);
+            }
+        }
+
+        // Move the extras of the remaining bits back by the number of deleted bits before them.
+        for (int i = 0; i < mExtraCount; i++) {
+            int index = mExtraIndices[i];
+            int newIndex;
+            if (index < startBitIndex) {
+                newIndex = index;
+            } else {
+                int offset = index - startBitIndex;
+                if (offset%stride == 0) {
+                    continue;
+                }
+                newIndex = index - offset/stride - 1;
             }
+            newBitStream.addExtra(newIndex, mExtras[i]);
         }
 
         return newBitStream;
     }
+
+    /**
+     * Append "count" bits starting at "index" to the other stream, without their extras.
+     */
+    private void copyBits(BitStream<T> other, int index, int count) {
+        while (count > 0) {
+            int length = Math.min(count, WORD_BITS);
+            other.append(get(index, length), length);
+            index += length;
+            count -= length;
+        }
+    }
+
+    /**
+     * Attach an extra to an existing bit, which must be after all bits that have extras.
+     */
+    private void addExtra(int index, Object extra) {
+        if (mExtraCount == mExtraIndices.length) {
+            mExtraIndices = Arrays.copyOf(mExtraIndices, mExtraCount*2);
+            mExtras = Arrays.copyOf(mExtras, mExtraCount*2);
+        }
+        mExtraIndices[mExtraCount] = index;
+        mExtras[mExtraCount] = extra;
+        mExtraCount++;
+    }
 }
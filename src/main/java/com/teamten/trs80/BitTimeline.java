@@ -0,0 +1,218 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+import java.util.Arrays;
+
+/**
+ * Every bit decoded in a program, so that any part of it can be looked at later without
+ * decoding the tape again. Each bit is delta-encoded into a byte array, usually in one or
+ * two bytes: its length and type in a variable-length integer, followed by its distance
+ * from the end of the previous bit in the rare case that it doesn't start there.
+ * Checkpoints every few hundred bits allow reading from the middle.
+ */
+class BitTimeline {
+    /**
+     * Number of bits between checkpoints.
+     */
+    private static final int CHECKPOINT_INTERVAL = 256;
+    /**
+     * Number of bits to show before and after a bad bit.
+     */
+    private static final int CONTEXT_BITS_BEFORE = 60;
+    private static final int CONTEXT_BITS_AFTER = 20;
+    /**
+     * Flag in the encoded length and type, for bits that don't start where the previous one ended.
+     */
+    private static final int GAP_FLAG = 0x04;
+    private static final int TYPE_MASK = 0x03;
+    private static final int LENGTH_SHIFT = 3;
+    private byte[] mData = new byte[1024];
+    private int mDataSize = 0;
+    private int mBitCount = 0;
+    private int mLastEndFrame = 0;
+    /**
+     * Offset in mData, and end frame of the previous bit, for every CHECKPOINT_INTERVAL bits.
+     */
+    private int[] mCheckpointOffsets = new int[16];
+    private int[] mCheckpointFrames = new int[16];
+
+    /**
+     * Reads bits from a checkpoint on.
+     */
+    private class Cursor {
+        private int mIndex;
+        private int mOffset;
+        private int mStartFrame;
+        private int mEndFrame;
+        private int mBitType;
+
+        Cursor(int checkpoint) {
+            mIndex = checkpoint*CHECKPOINT_INTERVAL;
+            mOffset = mCheckpointOffsets[checkpoint];
+            mEndFrame = mCheckpointFrames[checkpoint];
+        }
+
+        /**
+         * Decode the bit at mIndex and move to the next one.
+         */
+        void next() {
+            int value = readVarInt();
+            int gap = (value & GAP_FLAG) != 0 ? unZigZag(readVarInt()) : 0;
+            mStartFrame = mEndFrame + gap;
+            mEndFrame = mStartFrame + (value >>> LENGTH_SHIFT);
+            mBitType = value & TYPE_MASK;
+            mIndex++;
+        }
+
+        private int readVarInt() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = mData[mOffset++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+    }
+
+    /**
+     * Add a bit after all the others.
+     *
+     * @param startFrame the first frame, inclusive.
+     * @param endFrame the last frame, inclusive.
+     * @param bitType what kind of bit it is.
+     */
+    void add(int startFrame, int endFrame, BitType bitType) {
+        if (mBitCount % CHECKPOINT_INTERVAL == 0) {
+            int checkpoint = mBitCount/CHECKPOINT_INTERVAL;
+            if (checkpoint == mCheckpointOffsets.length) {
+                mCheckpointOffsets = Arrays.copyOf(mCheckpointOffsets, checkpoint*2);
+                mCheckpointFrames = Arrays.copyOf(mCheckpointFrames, checkpoint*2);
+            }
+            mCheckpointOffsets[checkpoint] = mDataSize;
+            mCheckpointFrames[checkpoint] = mLastEndFrame;
+        }
+
+        // Room for two maximum-length integers.
+        if (mDataSize + 10 > mData.length) {
+            mData = Arrays.copyOf(mData, mData.length*2);
+        }
+
+        int gap = startFrame - mLastEndFrame;
+        writeVarInt(((endFrame - startFrame) << LENGTH_SHIFT) | (gap != 0 ? GAP_FLAG : 0) | bitType.ordinal());
+        if (gap != 0) {
+            writeVarInt((gap << 1) ^ (gap >> 31));
+        }
+        mLastEndFrame = endFrame;
+        mBitCount++;
+    }
+
+    /**
+     * Number of bits in the timeline.
+     */
+    int size() {
+        return mBitCount;
+    }
+
+    /**
+     * Number of bytes used by the encoded bits.
+     */
+    int getEncodedSize() {
+        return mDataSize;
+    }
+
+    /**
+     * Index of the first bit that ends at or after the frame, or the number of bits if none does.
+     */
+    int findBit(int frame) {
+        // Last checkpoint that's before the frame.
+        int checkpointCount = (mBitCount + CHECKPOINT_INTERVAL - 1)/CHECKPOINT_INTERVAL;
+        int low = 0;
+        int high = checkpointCount;
+        while (high - low > 1) {
+            int middle = (low + high) >>> 1;
+            if (mCheckpointFrames[middle] < frame) {
+                low = middle;
+            } else {
+                high = middle;
+            }
+        }
+
+        if (checkpointCount > 0) {
+            Cursor cursor = new Cursor(low);
+            while (cursor.mIndex < mBitCount) {
+                cursor.next();
+                if (cursor.mEndFrame >= frame) {
+                    return cursor.mIndex - 1;
+                }
+            }
+        }
+        return mBitCount;
+    }
+
+    /**
+     * Copy the bits from fromIndex (inclusive) to toIndex (exclusive).
+     */
+    BitSection getSection(int fromIndex, int toIndex) {
+        if (fromIndex < 0 || toIndex > mBitCount || fromIndex > toIndex) {
+            throw new IndexOutOfBoundsException("Bits " + fromIndex + " to " + toIndex + " of " + mBitCount);
+        }
+
+        int count = toIndex - fromIndex;
+        int[] startFrames = new int[count];
+        int[] endFrames = new int[count];
+        byte[] bitTypes = new byte[count];
+        if (count > 0) {
+            Cursor cursor = new Cursor(fromIndex/CHECKPOINT_INTERVAL);
+            while (cursor.mIndex < fromIndex) {
+                cursor.next();
+            }
+            for (int i = 0; i < count; i++) {
+                cursor.next();
+                startFrames[i] = cursor.mStartFrame;
+                endFrames[i] = cursor.mEndFrame;
+                bitTypes[i] = (byte) cursor.mBitType;
+            }
+        }
+
+        return new BitSection(startFrames, endFrames, bitTypes);
+    }
+
+    /**
+     * The bits around the last bit of a bad section, for more context than the section has.
+     */
+    BitSection getContext(BitSection badSection) {
+        int index = findBit(badSection.getEndFrame(badSection.size() - 1));
+        return getSection(Math.max(0, index - CONTEXT_BITS_BEFORE),
+                Math.min(mBitCount, index + 1 + CONTEXT_BITS_AFTER));
+    }
+
+    private void writeVarInt(int value) {
+        while ((value & ~0x7F) != 0) {
+            mData[mDataSize++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        mData[mDataSize++] = (byte) value;
+    }
+
+    private static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
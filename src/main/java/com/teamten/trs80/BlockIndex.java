@@ -0,0 +1,252 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+import java.nio.ShortBuffer;
+import java.util.BitSet;
+import java.util.stream.IntStream;
+
+/**
+ * Compact summary of the raw samples of a tape: the lowest and highest sample in each
+ * block of {@link #BLOCK_SIZE} frames. It's built in one cheap pass before decoding and
+ * is used to find the silences that don't need to be decoded or that the tape can be
+ * split at. Blocks are always aligned to the start of the tape, so that an index of part
+ * of the tape, with the quiet threshold of the whole tape, finds the same silences.
+ */
+class BlockIndex {
+    /**
+     * Number of frames summarized by each entry.
+     */
+    static final int BLOCK_SIZE = 256;
+    /**
+     * Peak-to-peak amplitude of the raw samples at or above which a block is never considered
+     * quiet. This is measured before the high-pass filter so it includes any DC offset. The
+     * high-speed decoder needs twice {@link HighSpeedTapeDecoder#THRESHOLD} to see a cycle.
+     */
+    private static final int MAX_QUIET_PEAK_TO_PEAK = 2*HighSpeedTapeDecoder.THRESHOLD;
+    /**
+     * Peak-to-peak amplitude below which a block is always considered quiet. The low-speed
+     * decoder has no fixed threshold, so this is only a few steps of the 16-bit samples.
+     */
+    private static final int MIN_QUIET_PEAK_TO_PEAK = 16;
+    /**
+     * Fraction of the blocks whose peak-to-peak amplitude is taken as the noise floor of the tape.
+     */
+    private static final double NOISE_FLOOR_FRACTION = 0.1;
+    /**
+     * Blocks up to this many times the noise floor are quiet.
+     */
+    private static final double NOISE_MARGIN = 1.5;
+    /**
+     * The noise floor is only trusted if the loudest block is this many times louder. Otherwise
+     * the tape may have no silence at all and the noise floor is really the level of a recording.
+     */
+    private static final int MIN_LOUD_TO_NOISE = 4;
+    /**
+     * Minimum length of a run of quiet blocks that the decoders can skip. This is the
+     * silence that ends a low-speed program, so it never happens within a header.
+     */
+    private static final int MIN_SKIP_BLOCKS = (AudioUtils.HZ/10 + BLOCK_SIZE - 1)/BLOCK_SIZE;
+    /**
+     * First frame of the first block.
+     */
+    private final int mStartFrame;
+    /**
+     * Frame just past the last block.
+     */
+    private final int mEndFrame;
+    private final short[] mMin;
+    private final short[] mMax;
+    /**
+     * Peak-to-peak amplitude below which a block is quiet.
+     */
+    private final int mQuietPeakToPeak;
+    /**
+     * Blocks that are in a run of at least MIN_SKIP_BLOCKS quiet blocks.
+     */
+    private final BitSet mSkippable = new BitSet();
+
+    private BlockIndex(int startFrame, int endFrame, short[] min, short[] max, int quietPeakToPeak) {
+        mStartFrame = startFrame;
+        mEndFrame = endFrame;
+        mMin = min;
+        mMax = max;
+        mQuietPeakToPeak = quietPeakToPeak;
+
+        int blockCount = getBlockCount();
+        int block = 0;
+        while (block < blockCount) {
+            if (isQuiet(block)) {
+                int runStart = block;
+                while (block < blockCount && isQuiet(block)) {
+                    block++;
+                }
+                if (block - runStart >= MIN_SKIP_BLOCKS) {
+                    mSkippable.set(runStart, block);
+                }
+            } else {
+                block++;
+            }
+        }
+    }
+
+    /**
+     * Summarize the whole tape, in parallel, and find its quiet threshold.
+     */
+    static BlockIndex build(ShortBuffer samples) {
+        return summarize(samples, 0, samples.limit(), -1);
+    }
+
+    /**
+     * Summarize the samples from fromFrame (inclusive) to toFrame (exclusive), in parallel,
+     * with the quiet threshold of the whole tape. The range is widened to whole blocks and
+     * by a run of skippable blocks on each side, so that the silences in the range are the
+     * same as in the index of the whole tape. The rest of the tape isn't read.
+     */
+    static BlockIndex build(ShortBuffer samples, int fromFrame, int toFrame, int quietPeakToPeak) {
+        int startBlock = Math.max(0, fromFrame/BLOCK_SIZE - MIN_SKIP_BLOCKS);
+        int endBlock = (toFrame + BLOCK_SIZE - 1)/BLOCK_SIZE + MIN_SKIP_BLOCKS;
+        return summarize(samples, startBlock*BLOCK_SIZE,
+                (int) Math.min(samples.limit(), (long) endBlock*BLOCK_SIZE), quietPeakToPeak);
+    }
+
+    /**
+     * Summarize the samples from startFrame, which starts a block, to endFrame. If the quiet
+     * threshold is negative, it's computed from these samples.
+     */
+    private static BlockIndex summarize(ShortBuffer samples, int startFrame, int endFrame, int quietPeakToPeak) {
+        int blockCount = (endFrame - startFrame + BLOCK_SIZE - 1)/BLOCK_SIZE;
+        short[] min = new short[blockCount];
+        short[] max = new short[blockCount];
+
+        IntStream.range(0, blockCount).parallel().forEach(block -> {
+            short blockMin = Short.MAX_VALUE;
+            short blockMax = Short.MIN_VALUE;
+            int begin = startFrame + block*BLOCK_SIZE;
+            int end = Math.min(begin + BLOCK_SIZE, endFrame);
+            for (int frame = begin; frame < end; frame++) {
+                short sample = samples.get(frame);
+                if (sample < blockMin) {
+                    blockMin = sample;
+                }
+                if (sample > blockMax) {
+                    blockMax = sample;
+                }
+            }
+            min[block] = blockMin;
+            max[block] = blockMax;
+        });
+
+        return new BlockIndex(startFrame, endFrame, min, max,
+                quietPeakToPeak < 0 ? computeQuietPeakToPeak(min, max) : quietPeakToPeak);
+    }
+
+    /**
+     * Peak-to-peak amplitude below which a block is quiet. Quiet recordings can be decoded
+     * by the low-speed decoder well below the level that the high-speed decoder needs, so
+     * this is based on the noise floor of the tape rather than on a fixed level.
+     */
+    private static int computeQuietPeakToPeak(short[] min, short[] max) {
+        int blockCount = min.length;
+        if (blockCount == 0) {
+            return MIN_QUIET_PEAK_TO_PEAK;
+        }
+
+        // Histogram of the peak-to-peak amplitudes.
+        int[] counts = new int[Short.MAX_VALUE - Short.MIN_VALUE + 1];
+        int loudest = 0;
+        for (int block = 0; block < blockCount; block++) {
+            int peakToPeak = max[block] - min[block];
+            counts[peakToPeak]++;
+            loudest = Math.max(loudest, peakToPeak);
+        }
+        int noiseFloor = 0;
+        int noiseBlockCount = (int) (blockCount*NOISE_FLOOR_FRACTION);
+        for (int seen = counts[0]; seen <= noiseBlockCount; seen += counts[noiseFloor]) {
+            noiseFloor++;
+        }
+
+        int quietPeakToPeak = MIN_QUIET_PEAK_TO_PEAK;
+        if (noiseFloor*MIN_LOUD_TO_NOISE <= loudest) {
+            quietPeakToPeak = Math.max(quietPeakToPeak, (int) (noiseFloor*NOISE_MARGIN) + 1);
+        }
+        return Math.min(quietPeakToPeak, MAX_QUIET_PEAK_TO_PEAK);
+    }
+
+    /**
+     * Peak-to-peak amplitude below which a block is quiet.
+     */
+    int getQuietPeakToPeak() {
+        return mQuietPeakToPeak;
+    }
+
+    int getBlockCount() {
+        return mMin.length;
+    }
+
+    /**
+     * First frame of the block.
+     */
+    int getBlockStartFrame(int block) {
+        return mStartFrame + block*BLOCK_SIZE;
+    }
+
+    /**
+     * Lowest sample in the block.
+     */
+    short getMin(int block) {
+        return mMin[block];
+    }
+
+    /**
+     * Highest sample in the block.
+     */
+    short getMax(int block) {
+        return mMax[block];
+    }
+
+    /**
+     * Whether the block is too quiet to contain a bit.
+     */
+    boolean isQuiet(int block) {
+        return mMax[block] - mMin[block] < mQuietPeakToPeak;
+    }
+
+    /**
+     * If the frame is in a run of quiet blocks long enough to skip, the frame just past that run.
+     * Otherwise the frame itself.
+     */
+    int getSkipEnd(int frame) {
+        if (frame < mStartFrame || frame >= mEndFrame) {
+            return frame;
+        }
+        int block = (frame - mStartFrame)/BLOCK_SIZE;
+        if (!mSkippable.get(block)) {
+            return frame;
+        }
+        return Math.min(getBlockStartFrame(mSkippable.nextClearBit(block)), mEndFrame);
+    }
+
+    /**
+     * The first frame after "frame" that starts a run of quiet blocks long enough to skip,
+     * or the end of the indexed frames if there are no more.
+     */
+    int getNextSkipStart(int frame) {
+        int block = mSkippable.nextSetBit(Math.max(0, (frame - mStartFrame)/BLOCK_SIZE + 1));
+        return block == -1 ? mEndFrame : getBlockStartFrame(block);
+    }
+}
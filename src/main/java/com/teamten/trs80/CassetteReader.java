@@ -20,21 +20,21 @@ import com.google.common.base.Charsets;
 import com.google.common.io.Files;
 import picocli.CommandLine;
 
-import javax.sound.sampled.UnsupportedAudioFileException;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * Main class for reading a WAV file and parsing out the programs on it.
  */
 public class CassetteReader implements Runnable {
-
     @CommandLine.Parameters(index = "0", paramLabel = "INPUT_PATHNAME", description = "Input WAV file.")
     private String mInputPathname;
 
@@ -44,6 +44,56 @@ public class CassetteReader implements Runnable {
     @CommandLine.Option(names = { "--gui" }, description = "Show an interactive UI.")
     private boolean mShowGui = false;
 
+    @CommandLine.Option(names = { "--parallel" }, description = "Decode segments of the tape on all cores.")
+    private boolean mParallel = false;
+
+    @CommandLine.Option(names = { "--normalize-gain" }, description = "Normalize the level of quiet recordings.")
+    private boolean mNormalizeGain = false;
+
+    @CommandLine.Option(names = { "--no-skip-silence" },
+            description = "Decode long silences too, instead of skipping them while searching for a program.")
+    private boolean mNoSkipSilence = false;
+
+    @CommandLine.Option(names = { "--timeline" },
+            description = "Record every bit of each program, to dump bad bits with more context.")
+    private boolean mRecordTimelines = false;
+
+    @CommandLine.Option(names = { "--max-warnings" }, paramLabel = "COUNT",
+            description = "Maximum number of bad bits to log for each program (default: all).")
+    private int mMaxWarnings = Integer.MAX_VALUE;
+
+    @CommandLine.Option(names = { "--json-log" }, description = "Print the log as JSON lines.")
+    private boolean mJsonLog = false;
+
+    @CommandLine.Option(names = { "--map" }, description = "Only list where the recordings are, without decoding.")
+    private boolean mMapOnly = false;
+
+    @CommandLine.Option(names = { "--cache" }, paramLabel = "DIR",
+            description = "Keep decoded tapes in this directory to skip decoding them again (not with --gui or --timeline).")
+    private String mCacheDir;
+
+    @CommandLine.Option(names = { "--cache-max-size" }, paramLabel = "MB",
+            description = "Maximum size of the cache (default: 1000 MB).")
+    private long mCacheMaxMegabytes = 1000;
+
+    @CommandLine.Option(names = { "--cache-max-age" }, paramLabel = "DAYS",
+            description = "Delete cached tapes not used in this many days (default: 90).")
+    private int mCacheMaxAgeDays = 90;
+
+    @CommandLine.Option(names = { "--track" }, paramLabel = "TRACK",
+            description = "Only decode this track, found in the index of an earlier run or by mapping the tape.")
+    private int mTrack = 0;
+
+    @CommandLine.Option(names = { "--from" }, paramLabel = "FRAME", description = "Only decode from this frame on.")
+    private int mFromFrame = 0;
+
+    @CommandLine.Option(names = { "--to" }, paramLabel = "FRAME", description = "Only decode up to this frame.")
+    private int mToFrame = Integer.MAX_VALUE;
+
+    private DecodeCache mCache;
+    private DecodeProgress mProgress;
+    private Consumer<Program> mProgramListener;
+
     public static void main(String[] args) {
         // Parse command-line parameters.
         CommandLine.run(new CassetteReader(), args);
@@ -51,8 +101,25 @@ public class CassetteReader implements Runnable {
 
     @Override
     public void run() {
+        if (mMapOnly) {
+            try {
+                printTapeMap();
+            } catch (IOException e) {
+                System.err.println("I/O exception: " + e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+        if (mShowGui) {
+            runGui();
+            return;
+        }
+
         Results results;
         try {
+            if (mCacheDir != null) {
+                mCache = new DecodeCache(new File(mCacheDir), mCacheMaxMegabytes*1024*1024, mCacheMaxAgeDays);
+            }
             results = parsePrograms();
         } catch (IOException e) {
             System.err.println("I/O exception: " + e.getMessage());
@@ -60,9 +127,56 @@ public class CassetteReader implements Runnable {
             return; // Silence error.
         }
 
-        if (mShowGui) {
-            // Hangs program until UI quits.
-            new Gui(results);
+        if (!results.getOutputErrors().isEmpty()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Open the UI at once and decode the tape in the background. Programs show up in the
+     * UI as they're found, and the output files are written at the end unless decoding
+     * is canceled.
+     */
+    private void runGui() {
+        SampleWindows sampleWindows;
+        try {
+            sampleWindows = new SampleWindows(AudioUtils.mapWavFile(new File(mInputPathname)), mNormalizeGain);
+        } catch (IOException e) {
+            System.err.println("I/O exception: " + e.getMessage());
+            System.exit(1);
+            return; // Silence error.
+        }
+
+        mProgress = new DecodeProgress();
+        Gui gui = new Gui(sampleWindows, mProgress);
+        mProgramListener = gui::addProgram;
+
+        // Hangs program until decoding is done and the UI quits.
+        new Thread(() -> {
+            try {
+                gui.finish(parsePrograms());
+            } catch (IOException e) {
+                System.err.println("I/O exception: " + e.getMessage());
+                gui.fail(e.getMessage());
+            } catch (RuntimeException e) {
+                // Don't leave the UI decoding forever.
+                e.printStackTrace();
+                gui.fail(e.toString());
+            }
+        }, "decoder").start();
+    }
+
+    /**
+     * Quickly list the recordings on the input file.
+     */
+    private void printTapeMap() throws IOException {
+        ShortBuffer samples = AudioUtils.mapWavFile(new File(mInputPathname));
+        for (TapeMap.Recording recording : TapeMap.scan(samples).getRecordings()) {
+            System.out.printf("%s: %s to %s, program at frame %,d, about %,d bytes\n",
+                    recording.isHighSpeed() ? "High speed" : "Low speed",
+                    AudioUtils.frameToTimestamp(recording.getStartFrame()),
+                    AudioUtils.frameToTimestamp(recording.getEndFrame()),
+                    recording.getProgramFrame(), recording.getEstimatedByteCount());
         }
     }
 
@@ -70,182 +184,498 @@ public class CassetteReader implements Runnable {
      * Parse the input file and generate various output files.
      */
     private Results parsePrograms() throws IOException {
-        InputStream is = new FileInputStream(mInputPathname);
-        short[] samples;
+        ExecutorService outputExecutor = OutputStage.createExecutor(Runtime.getRuntime().availableProcessors());
         try {
-            samples = AudioUtils.readWavFile(is, mInputPathname);
-        } catch (UnsupportedAudioFileException e) {
-            throw new IOException("Unsupported audio file: " + e.getMessage());
+            return readTape(new File(mInputPathname), mOutputPrefix, outputExecutor, System.out);
+        } finally {
+            outputExecutor.shutdown();
         }
-        Results results = parsePrograms(samples);
-        System.out.print(results.getLog());
+    }
+
+    /**
+     * Parse the input file and generate various output files, whose pathnames start with
+     * the output prefix. The output files are written on the executor, and the log is
+     * printed to "out".
+     */
+    Results readTape(File inputFile, String outputPrefix, ExecutorService outputExecutor, PrintStream out)
+            throws IOException {
+
+        DecodeMetrics.HeapSampler heapSampler = new DecodeMetrics.HeapSampler();
+        try {
+            return readTape(inputFile, outputPrefix, outputExecutor, out, heapSampler);
+        } finally {
+            heapSampler.stop();
+        }
+    }
+
+    /**
+     * Read the tape as above, with the sampler finding the heap's peak for the metrics.
+     */
+    private Results readTape(File inputFile, String outputPrefix, ExecutorService outputExecutor, PrintStream out,
+            DecodeMetrics.HeapSampler heapSampler) throws IOException {
+
+        // Map the file instead of reading it, so that long tapes don't fill the heap.
+        long beforeTime = System.nanoTime();
+        ShortBuffer samples = AudioUtils.mapWavFile(inputFile);
+
+        // The cache doesn't have the filtered samples and timelines, or parts of tapes.
+        boolean partial = isPartial();
+        boolean useCache = mCache != null && !mShowGui && !mRecordTimelines && !partial;
+        String cacheKey = useCache ? DecodeCache.getKey(samples, getDecodeParameters()) : null;
+        Results results = useCache ? mCache.load(cacheKey) : null;
+        long readNanos = System.nanoTime() - beforeTime;
+        boolean cacheHit = results != null;
+        if (cacheHit) {
+            results.setSampleWindows(new SampleWindows(samples, mNormalizeGain));
+            results.mLog.message("Using cached decoding " + cacheKey + ".");
+        } else if (partial) {
+            results = parsePart(samples, outputPrefix);
+        } else {
+            results = parsePrograms(samples);
+            if (useCache && !isCanceled()) {
+                try {
+                    mCache.store(cacheKey, results);
+                } catch (IOException e) {
+                    // Not worth failing the run for.
+                    results.mLog.message("Can't write to cache: " + e);
+                }
+            }
+        }
+        // Logged here rather than when mapping, so that batch runs get it in each file's log.
+        results.mLog.message(String.format("Read %s: %,d samples of 16-bit mono at %d Hz",
+                inputFile, samples.limit(), AudioUtils.HZ));
+        DecodeMetrics metrics = results.getMetrics();
+        metrics.addStageTime(DecodeMetrics.Stage.READ, readNanos);
+        EventLog.Format logFormat = mJsonLog ? EventLog.Format.JSON : EventLog.Format.TEXT;
+
+        // Don't replace the outputs of an earlier run with those of part of the tape.
+        if (isCanceled()) {
+            results.mLog.message("Decoding canceled, not writing output files.");
+            out.print(results.mLog.render(logFormat, 0));
+            return results;
+        }
+
+        // Nothing to do if the outputs were all written since the input last changed.
+        if (cacheHit && areOutputsUpToDate(inputFile, outputPrefix, results)) {
+            results.mLog.message("Outputs are up to date.");
+            out.print(results.mLog.render(logFormat, 0));
+            return results;
+        }
+        out.print(results.mLog.render(logFormat, 0));
 
         List<Program> programs = results.getPrograms();
         if (!programs.isEmpty()) {
-            results.mLog.println("New programs at:");
+            results.mLog.message("New programs at:");
             for (Program program : programs) {
-                results.mLog.println("    " + AudioUtils.frameToTimestamp(program.getStartFrame()));
+                results.mLog.message("    " + AudioUtils.frameToTimestamp(program.getStartFrame()));
             }
         }
 
-        // Dump all output files.
+        // Dump all output files. The jobs are independent, so run them in parallel.
+        int logSize = results.mLog.size();
+        JfrEvents.StageEvent stageEvent = JfrEvents.beginStage("output", outputPrefix, 0, samples.limit());
+        SampleWindows sampleWindows = results.getSampleWindows();
+        OutputStage outputStage = new OutputStage(outputExecutor);
         for (Program program : programs) {
             boolean isProgram = program.isProgram();
-
-            // Highlight non-programs in pathname.
-            String suffix = isProgram ? "" : "-binary";
-
             byte[] binary = program.getBinary();
+            int startFrame = program.getStartFrame();
+            int endFrame = program.getEndFrame();
 
             // Binary dump.
-            String basePathname = mOutputPrefix + program.getTrack() + "-" + program.getCopy() + suffix;
-            OutputStream fos = new FileOutputStream(basePathname + ".bin");
-            fos.write(binary);
-            fos.close();
+            String basePathname = getBasePathname(outputPrefix, program);
+            File binFile = new File(basePathname + ".bin");
+            outputStage.submit(binFile, startFrame, endFrame, log -> {
+                long beforeWriteTime = System.nanoTime();
+                Files.write(binary, binFile);
+                metrics.addStageTime(DecodeMetrics.Stage.WRITE, System.nanoTime() - beforeWriteTime);
+
+                if (!isProgram) {
+                    // Dump non-Basic header.
+                    StringBuilder sb = new StringBuilder(String.format("First few bytes (of %,d):", binary.length));
+                    for (int i = 0; i < binary.length && i < 3; i++) {
+                        sb.append(String.format(" 0x%02X", binary[i]));
+                    }
+                    log.message(sb.toString());
+                }
+            });
 
             if (isProgram) {
                 // Basic dump.
-                String basicProgram = Basic.fromTokenized(binary);
-                if (basicProgram == null) {
-                    results.mLog.println("Error: Cannot parse Basic program");
-                } else {
-                    Files.asCharSink(new File(basePathname + ".bas"), Charsets.UTF_8).write(basicProgram);
-                }
-            } else {
-                // Dump non-Basic header.
-                results.mLog.printf("First few bytes (of %,d):", binary.length);
-                for (int i = 0; i < binary.length && i < 3; i++) {
-                    results.mLog.printf(" 0x%02X", binary[i]);
-                }
-                results.mLog.println();
+                File basFile = new File(basePathname + ".bas");
+                outputStage.submit(basFile, startFrame, endFrame, log -> {
+                    long beforeEncodeTime = System.nanoTime();
+                    String basicProgram = Basic.fromTokenized(binary);
+                    long beforeWriteTime = System.nanoTime();
+                    metrics.addStageTime(DecodeMetrics.Stage.ENCODE, beforeWriteTime - beforeEncodeTime);
+                    if (basicProgram == null) {
+                        log.error("Error: Cannot parse Basic program");
+                    } else {
+                        Files.asCharSink(basFile, Charsets.UTF_8).write(basicProgram);
+                        metrics.addStageTime(DecodeMetrics.Stage.WRITE, System.nanoTime() - beforeWriteTime);
+                    }
+                });
             }
 
             // WAV dump.
             File wavFile = new File(basePathname + ".wav");
-            // Low-speed programs end in two 0x00, but high-speed programs
-            // end in three 0x00. Add the additional 0x00 since we're
-            // saving high-speed.
-            byte[] highSpeedBytes = binary;
-            if (highSpeedBytes.length >= 3 &&
-                    highSpeedBytes[highSpeedBytes.length - 1] == (byte) 0x00 &&
-                    highSpeedBytes[highSpeedBytes.length - 2] == (byte) 0x00 &&
-                    highSpeedBytes[highSpeedBytes.length - 3] != (byte) 0x00) {
-
-                highSpeedBytes = Arrays.copyOf(highSpeedBytes, highSpeedBytes.length + 1);
-                highSpeedBytes[highSpeedBytes.length - 1] = 0x00;
+            outputStage.submit(wavFile, startFrame, endFrame, log -> writeHighSpeedWavFile(binary, wavFile, log, metrics));
+
+            // Bad bits, with the bits around them.
+            BitTimeline timeline = program.getTimeline();
+            if (timeline != null) {
+                int badCounter = 1;
+                for (BitSection badSection : program.getBadSections()) {
+                    String imagePathname = basePathname + "-bad-" + badCounter + ".png";
+                    outputStage.submit(new File(imagePathname), badSection.getStartFrame(0),
+                            badSection.getEndFrame(badSection.size() - 1) + 1, log -> {
+                        long beforeWriteTime = System.nanoTime();
+                        timeline.getContext(badSection).dump(sampleWindows, 0, imagePathname);
+                        metrics.addStageTime(DecodeMetrics.Stage.WRITE, System.nanoTime() - beforeWriteTime);
+                    });
+                    badCounter += 1;
+                }
             }
-            short[] audio = HighSpeedTapeEncoder.encode(highSpeedBytes);
-            AudioUtils.writeWavFile(audio, wavFile);
         }
 
         // Dump bad sections.
+        String runPrefix = getRunPrefix(outputPrefix);
         int counter = 1;
-        for (BitHistory bitHistory : results.getBadSections()) {
-            bitHistory.dump(samples, 0, "bad-" + counter + ".png");
+        for (BitSection badSection : results.getBadSections()) {
+            String imagePathname = runPrefix + "bad-" + counter + ".png";
+            outputStage.submit(new File(imagePathname), badSection.getStartFrame(0),
+                    badSection.getEndFrame(badSection.size() - 1) + 1, log -> {
+                long beforeWriteTime = System.nanoTime();
+                badSection.dump(sampleWindows, 0, imagePathname);
+                metrics.addStageTime(DecodeMetrics.Stage.WRITE, System.nanoTime() - beforeWriteTime);
+            });
             counter += 1;
         }
 
+        outputStage.finish(results);
+        stageEvent.commit();
+        out.print(results.mLog.render(logFormat, logSize));
+
+        // Index of the whole tape, to decode parts of it later.
+        if (!partial) {
+            File indexFile = new File(outputPrefix + TapeIndex.FILENAME);
+            try {
+                TapeIndex.fromResults(results).write(indexFile);
+            } catch (IOException e) {
+                String error = indexFile + ": " + e;
+                results.mLog.error("Error writing " + error);
+                results.addOutputError(error);
+                out.print(results.mLog.render(logFormat, results.mLog.size() - 1));
+            }
+        }
+
+        // Metrics of the whole run, for tools and for people.
+        long totalNanos = System.nanoTime() - beforeTime;
+        metrics.setPeakHeapBytes(heapSampler.getPeakBytes());
+        File metricsFile = new File(runPrefix + "metrics.json");
+        try {
+            Files.asCharSink(metricsFile, Charsets.UTF_8).write(metrics.toJson(inputFile.getPath(), totalNanos));
+        } catch (IOException e) {
+            String error = metricsFile + ": " + e;
+            results.mLog.error("Error writing " + error);
+            results.addOutputError(error);
+            out.print(results.mLog.render(logFormat, results.mLog.size() - 1));
+        }
+        if (!mJsonLog) {
+            out.print(metrics.getSummary(totalNanos));
+        }
+
         return results;
     }
 
+    /**
+     * Pathname of the program's output files, without their extensions.
+     */
+    private static String getBasePathname(String outputPrefix, Program program) {
+        // Highlight non-programs in pathname.
+        String suffix = program.isProgram() ? "" : "-binary";
+        return outputPrefix + program.getTrack() + "-" + program.getCopy() + suffix;
+    }
+
+    /**
+     * Prefix of the files about the whole run rather than about a program: the bad sections
+     * outside of programs, and the metrics. Runs on part of the tape get their own, so that
+     * they don't replace those of the whole tape.
+     */
+    private String getRunPrefix(String outputPrefix) {
+        if (mTrack != 0) {
+            return outputPrefix + "track-" + mTrack + "-";
+        }
+        if (isPartial()) {
+            return outputPrefix + "frames-" + mFromFrame + "-"
+                    + (mToFrame == Integer.MAX_VALUE ? "end" : String.valueOf(mToFrame)) + "-";
+        }
+        return outputPrefix;
+    }
+
+    /**
+     * Whether all output files exist and are no older than the input file.
+     */
+    private static boolean areOutputsUpToDate(File inputFile, String outputPrefix, Results results) {
+        List<File> outputFiles = new ArrayList<>();
+        for (Program program : results.getPrograms()) {
+            String basePathname = getBasePathname(outputPrefix, program);
+            outputFiles.add(new File(basePathname + ".bin"));
+            if (program.isProgram()) {
+                outputFiles.add(new File(basePathname + ".bas"));
+            }
+            outputFiles.add(new File(basePathname + ".wav"));
+        }
+        for (int i = 1; i <= results.getBadSections().size(); i++) {
+            outputFiles.add(new File(outputPrefix + "bad-" + i + ".png"));
+        }
+        outputFiles.add(new File(outputPrefix + "metrics.json"));
+        outputFiles.add(new File(outputPrefix + TapeIndex.FILENAME));
+
+        long inputTime = inputFile.lastModified();
+        for (File outputFile : outputFiles) {
+            if (!outputFile.exists() || outputFile.lastModified() < inputTime) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The options that change what's decoded, for the cache key.
+     */
+    private String getDecodeParameters() {
+        return "normalizeGain=" + mNormalizeGain + ",maxWarnings=" + mMaxWarnings
+                + ",skipSilence=" + !mNoSkipSilence;
+    }
+
+    /**
+     * Write the program as a high-speed cassette.
+     */
+    private static void writeHighSpeedWavFile(byte[] binary, File wavFile, EventLog log, DecodeMetrics metrics)
+            throws IOException {
+
+        // Low-speed programs end in two 0x00, but high-speed programs
+        // end in three 0x00. Add the additional 0x00 since we're
+        // saving high-speed.
+        byte[] highSpeedBytes = binary;
+        if (highSpeedBytes.length >= 3 &&
+                highSpeedBytes[highSpeedBytes.length - 1] == (byte) 0x00 &&
+                highSpeedBytes[highSpeedBytes.length - 2] == (byte) 0x00 &&
+                highSpeedBytes[highSpeedBytes.length - 3] != (byte) 0x00) {
+
+            highSpeedBytes = Arrays.copyOf(highSpeedBytes, highSpeedBytes.length + 1);
+            highSpeedBytes[highSpeedBytes.length - 1] = 0x00;
+        }
+        log.message(String.format("Writing %s, %,d samples",
+                wavFile, HighSpeedTapeEncoder.getEncodedLength(highSpeedBytes)));
+        long beforeTime = System.nanoTime();
+        WavWriter wavWriter;
+        try (WavWriter writer = new WavWriter(wavFile)) {
+            wavWriter = writer;
+            HighSpeedTapeEncoder.encode(highSpeedBytes, writer);
+        }
+
+        // The samples are written as they're encoded. Closing writes the header, so read it after.
+        long writeNanos = wavWriter.getWriteNanos();
+        metrics.addStageTime(DecodeMetrics.Stage.ENCODE, System.nanoTime() - beforeTime - writeNanos);
+        metrics.addStageTime(DecodeMetrics.Stage.WRITE, writeNanos);
+    }
+
     /**
      * Parse the programs in the specified samples.
      */
     Results parsePrograms(short[] samples) {
-        Results results = new Results();
-        results.setOriginalSamples(samples);
-
-        results.mLog.println("Performing high-pass filter.");
-        samples = AudioUtils.highPassFilter(samples, 500);
-        results.setFilteredSamples(samples);
-
-        int instanceNumber = 1;
-        int trackNumber = 0;
-        int copyNumber = 1;
-        int frame = 0;
-        int programStartFrame = -1;
-        while (frame < samples.length) {
-            results.mLog.println("--------------------------------------- " + instanceNumber);
-
-            // Start out trying all decoders.
-            TapeDecoder[] tapeDecoders = new TapeDecoder[] {
-                    new LowSpeedTapeDecoder(),
-                    new HighSpeedTapeDecoder()
-            };
-
-            int searchFrameStart = frame;
-            TapeDecoderState state = TapeDecoderState.UNDECIDED;
-            for (; frame < samples.length && (state == TapeDecoderState.UNDECIDED || state == TapeDecoderState.DETECTED); frame++) {
-                // Give the sample to all decoders in parallel.
-                int detectedIndex = -1;
-                for (int i = 0; i < tapeDecoders.length; i++) {
-                    TapeDecoder tapeDecoder = tapeDecoders[i];
-
-                    tapeDecoder.handleSample(results, samples, frame);
-
-                    // See if it detected its encoding.
-                    if (tapeDecoder.getState() != TapeDecoderState.UNDECIDED) {
-                        detectedIndex = i;
-                    }
-                }
-
-                // If any has detected, keep only that one and kill the rest.
-                if (state == TapeDecoderState.UNDECIDED) {
-                    if (detectedIndex != -1) {
-                        TapeDecoder tapeDecoder = tapeDecoders[detectedIndex];
+        return parsePrograms(ShortBuffer.wrap(samples));
+    }
 
-                        // See how long it took to find it. A large gap means a new track.
-                        double leadTime = (double) (frame - searchFrameStart)/AudioUtils.HZ;
-                        if (leadTime > 10 || programStartFrame == -1) {
-                            trackNumber += 1;
-                            copyNumber = 1;
-                        }
+    /**
+     * Parse the programs in the specified samples, which may be a view on a mapped file.
+     * The samples are filtered and decoded a block at a time, so memory use doesn't depend
+     * on the length of the tape.
+     */
+    Results parsePrograms(ShortBuffer samples) {
+        return parsePrograms(samples, 0, samples.limit(), 0, 0, 0);
+    }
 
-                        programStartFrame = frame;
-                        results.mLog.printf("Decoder \"%s\" detected %d-%d at %s after %.1f seconds.\n",
-                                tapeDecoder.getName(), trackNumber, copyNumber, AudioUtils.frameToTimestamp(frame), leadTime);
+    /**
+     * Whether decoding was canceled before the end.
+     */
+    private boolean isCanceled() {
+        return mProgress != null && mProgress.isCanceled();
+    }
 
-                        // Throw away the other decoders.
-                        tapeDecoders = new TapeDecoder[] {
-                                tapeDecoder
-                        };
+    /**
+     * Whether only a track or range of frames is to be decoded.
+     */
+    private boolean isPartial() {
+        return mTrack != 0 || mFromFrame != 0 || mToFrame != Integer.MAX_VALUE;
+    }
 
-                        state = tapeDecoder.getState();
-                    }
-                } else {
-                    // See if we should keep going.
-                    state = tapeDecoders[0].getState();
-                }
+    /**
+     * Parse only the requested track or range of frames. The programs are numbered as
+     * in the index of an earlier run on the whole tape, if there is one. Without an index,
+     * a track is found with a {@link TapeMap} of the tape.
+     */
+    private Results parsePart(ShortBuffer samples, String outputPrefix) throws IOException {
+        File indexFile = new File(outputPrefix + TapeIndex.FILENAME);
+        TapeIndex index = indexFile.exists() ? TapeIndex.read(indexFile) : null;
+
+        int fromFrame;
+        int toFrame;
+        TapeIndex.Entry first;
+        if (mTrack != 0 && index == null) {
+            List<TapeMap.Recording> recordings = TapeMap.scan(samples).getTrack(mTrack);
+            if (recordings.isEmpty()) {
+                throw new IOException("No track " + mTrack + " on the tape, and no " + indexFile
+                        + " to find it in");
             }
-
-            switch (state) {
-                case UNDECIDED:
-                    results.mLog.println("Reached end of tape without finding track.");
-                    break;
-
-                case DETECTED:
-                    results.mLog.println("Reached end of tape while still reading track.");
-                    break;
-
-                case ERROR:
-                    results.mLog.println("Decoder detected an error; skipping program.");
-                    Program program = new Program(trackNumber, copyNumber, programStartFrame);
-                    program.setBinary(tapeDecoders[0].getProgram());
-                    results.addProgram(program);
-                    break;
-
-                case FINISHED:
-                    results.mLog.println("Found end of program at " + AudioUtils.frameToTimestamp(frame) + ".");
-                    program = new Program(trackNumber, copyNumber, programStartFrame);
-                    program.setBinary(tapeDecoders[0].getProgram());
-                    results.addProgram(program);
-                    break;
+            fromFrame = recordings.get(0).getSeekFrame();
+            toFrame = recordings.get(recordings.size() - 1).getStopFrame(samples.limit());
+            first = null;
+        } else if (mTrack != 0) {
+            List<TapeIndex.Entry> entries = index.getTrack(mTrack);
+            if (entries.isEmpty()) {
+                throw new IOException("No track " + mTrack + " in " + indexFile);
             }
+            first = entries.get(0);
+            fromFrame = first.getSearchFrame();
+            toFrame = entries.get(entries.size() - 1).getEndFrame();
+        } else {
+            fromFrame = mFromFrame;
+            toFrame = mToFrame;
+            first = index == null ? null : index.findFirstEndingAfter(fromFrame);
+
+            // Don't start part way through a program, or it would get the next one's number.
+            if (first != null && first.getSearchFrame() < fromFrame) {
+                fromFrame = first.getSearchFrame();
+            }
+        }
 
-            copyNumber += 1;
-            instanceNumber += 1;
+        fromFrame = Math.max(0, Math.min(fromFrame, samples.limit()));
+        toFrame = Math.max(fromFrame, Math.min(toFrame, samples.limit()));
+        int firstTrack = first != null ? first.getTrack() : mTrack;
+        int firstCopy = first != null ? first.getCopy() : 1;
+        return parsePrograms(samples, fromFrame, toFrame, firstTrack, firstCopy,
+                index == null ? 0 : index.getQuietPeakToPeak());
+    }
+
+    /**
+     * Parse the programs from fromFrame (inclusive) to toFrame (exclusive).
+     *
+     * @param firstTrack if not 0, the track of the first program in the range, to number the
+     * programs as when reading the whole tape.
+     * @param firstCopy the copy of the first program in the range, if firstTrack is not 0.
+     * @param quietPeakToPeak the quiet threshold of the whole tape, from its index, or 0 to
+     * measure it over the whole tape.
+     */
+    private Results parsePrograms(ShortBuffer samples, int fromFrame, int toFrame, int firstTrack, int firstCopy,
+                                  int quietPeakToPeak) {
+        long beforeTime = System.nanoTime();
+        Results results = new Results();
+        int sampleCount = samples.limit();
+        if (mProgress != null) {
+            mProgress.start(toFrame - fromFrame);
         }
 
+        // Nothing is kept of the samples. Bad sections are drawn from windows read again when needed.
+        results.setSampleWindows(new SampleWindows(samples, mNormalizeGain));
+
+        // Quick pass to find the silences in the range. Don't skip them when the whole recording
+        // may be too quiet to pass as a signal, or when asked not to. What counts as quiet depends
+        // on the whole tape, so without its threshold we must read all of it.
+        BlockIndex blockIndex = quietPeakToPeak == 0 ? BlockIndex.build(samples)
+                : BlockIndex.build(samples, fromFrame, toFrame, quietPeakToPeak);
+        results.setQuietPeakToPeak(blockIndex.getQuietPeakToPeak());
+        BlockIndex skipIndex = mNormalizeGain || mNoSkipSilence ? null : blockIndex;
+
+        results.mLog.message("Performing high-pass filter.");
+        JfrEvents.StageEvent stageEvent = JfrEvents.beginStage("filter and decode", null, fromFrame, toFrame);
+        ProgramCollector programCollector = new ProgramCollector(results);
+        if (firstTrack != 0) {
+            programCollector.setNextNumber(firstTrack, firstCopy);
+        }
+        programCollector.setProgramListener(mProgramListener);
+        Function<Consumer<TapeReader.Instance>, TapeReader> tapeReaderFactory = consumer -> {
+            TapeReader tapeReader = new TapeReader(consumer, SignalChain.create(mNormalizeGain), skipIndex);
+            tapeReader.setMaxWarnings(mMaxWarnings);
+            tapeReader.setMetrics(results.getMetrics());
+            tapeReader.setRecordTimelines(mRecordTimelines || mShowGui);
+            tapeReader.setProgress(mProgress);
+            return tapeReader;
+        };
+        // Segments start with fresh decoders and filters, which is only the same as one pass
+        // if that pass starts over after each silence too.
+        boolean parallel = mParallel && fromFrame == 0 && toFrame == sampleCount;
+        if (parallel && skipIndex == null) {
+            results.mLog.message("Not decoding in parallel, since silences aren't skipped.");
+            parallel = false;
+        }
+        if (parallel) {
+            ParallelTapeReader.read(samples, blockIndex, tapeReaderFactory, programCollector,
+                    results.getMetrics(), mProgress);
+        } else {
+            tapeReaderFactory.apply(programCollector).read(samples, fromFrame, toFrame);
+        }
+        stageEvent.commit();
+        results.getMetrics().setDecodeTime(toFrame - fromFrame, System.nanoTime() - beforeTime);
+
         return results;
     }
+
+    /**
+     * Whether to decode segments of the tape on multiple cores.
+     */
+    void setParallel(boolean parallel) {
+        mParallel = parallel;
+    }
+
+    /**
+     * Maximum number of warnings to log for each program found.
+     */
+    void setMaxWarnings(int maxWarnings) {
+        mMaxWarnings = maxWarnings;
+    }
+
+    /**
+     * Whether to print the log as JSON lines instead of text.
+     */
+    void setJsonLog(boolean jsonLog) {
+        mJsonLog = jsonLog;
+    }
+
+    /**
+     * Only decode this track, found in the index of an earlier run on the whole tape.
+     */
+    void setTrack(int track) {
+        mTrack = track;
+    }
+
+    /**
+     * Only decode from this frame on.
+     */
+    void setFromFrame(int fromFrame) {
+        mFromFrame = fromFrame;
+    }
+
+    /**
+     * Cache of decoded tapes to use, or null for none.
+     */
+    void setCache(DecodeCache cache) {
+        mCache = cache;
+    }
+
+    /**
+     * Whether to normalize the level of quiet recordings.
+     */
+    void setNormalizeGain(boolean normalizeGain) {
+        mNormalizeGain = normalizeGain;
+    }
+
+    /**
+     * Whether to skip long silences while searching for a program.
+     */
+    void setSkipSilence(boolean skipSilence) {
+        mNoSkipSilence = !skipSilence;
+    }
 }
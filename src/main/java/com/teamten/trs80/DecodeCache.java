@@ -0,0 +1,249 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Directory of decoded tapes, so that reading an unchanged capture again doesn't decode
+ * it again. Entries are keyed by a hash of the samples and of the decoding parameters,
+ * and hold the programs, their bad sections, and the log. The least recently used entries
+ * are deleted when the cache gets too big, and entries not used for a while are deleted too.
+ * Can be shared by threads.
+ */
+class DecodeCache {
+    /**
+     * Version of the decoders. Bump this when they change, so that old entries aren't used.
+     */
+    private static final int DECODER_VERSION = 2;
+    /**
+     * Start of every entry, with the version of its format.
+     */
+    private static final int MAGIC = 0x54385203;
+    private static final String EXTENSION = ".cache";
+    private final File mDir;
+    private final long mMaxBytes;
+    private final long mMaxAgeMillis;
+
+    /**
+     * An entry's file with its time of last use and size, read once so that they
+     * don't change while the entries are sorted.
+     */
+    private static class EntryFile {
+        private final File mFile;
+        private final long mLastModified;
+        private final long mLength;
+
+        EntryFile(File file) {
+            mFile = file;
+            mLastModified = file.lastModified();
+            mLength = file.length();
+        }
+    }
+
+    /**
+     * @param dir directory of the entries, created if necessary.
+     * @param maxBytes total size of the entries to keep.
+     * @param maxAgeDays how long to keep entries that aren't used.
+     */
+    DecodeCache(File dir, long maxBytes, int maxAgeDays) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create cache directory " + dir);
+        }
+        mDir = dir;
+        mMaxBytes = maxBytes;
+        mMaxAgeMillis = TimeUnit.DAYS.toMillis(maxAgeDays);
+    }
+
+    /**
+     * Key of the entry for these samples decoded with these parameters.
+     *
+     * @param parameters every option that changes the decoding, such as the gain normalization.
+     */
+    static String getKey(ShortBuffer samples, String parameters) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        hasher.putInt(DECODER_VERSION);
+        hasher.putString(parameters, Charsets.UTF_8);
+
+        // Hash the samples in chunks, since the samples may be a view on a mapped file.
+        ByteBuffer bytes = ByteBuffer.allocate(64*1024).order(ByteOrder.LITTLE_ENDIAN);
+        ShortBuffer chunk = bytes.asShortBuffer();
+        ShortBuffer source = samples.duplicate();
+        source.position(0);
+        while (source.hasRemaining()) {
+            int count = Math.min(chunk.capacity(), source.remaining());
+            ShortBuffer slice = source.slice();
+            slice.limit(count);
+            chunk.clear();
+            chunk.put(slice);
+            source.position(source.position() + count);
+            bytes.clear();
+            bytes.limit(count*2);
+            hasher.putBytes(bytes);
+        }
+
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Get the results stored for the key, or null if there are none. The results have
+     * the programs, bad sections, log, and per-program metrics of the original decoding.
+     */
+    Results load(String key) {
+        File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+
+        Results results = new Results();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Bad magic number");
+            }
+            results.setQuietPeakToPeak(in.readInt());
+            results.mLog.read(in);
+            int programCount = in.readInt();
+            for (int i = 0; i < programCount; i++) {
+                Program program = new Program(in.readInt(), in.readInt(), in.readInt());
+                program.setDecoder(in.readUTF(), in.readInt());
+                program.setSearchStartFrame(in.readInt());
+                program.setEndFrame(in.readInt());
+                byte[] binary = new byte[in.readInt()];
+                in.readFully(binary);
+                program.setBinary(binary);
+                results.addBadSections(readBadSections(in));
+                results.addProgram(program);
+                results.getMetrics().addProgram(program);
+            }
+            results.addBadSections(readBadSections(in));
+        } catch (IOException | RuntimeException e) {
+            // Bad or old entry. Decode again and replace it.
+            file.delete();
+            return null;
+        }
+
+        // Keep recently used entries.
+        file.setLastModified(System.currentTimeMillis());
+
+        return results;
+    }
+
+    /**
+     * Store freshly decoded results under the key, then delete old entries if necessary.
+     */
+    void store(String key, Results results) throws IOException {
+        // Write to a temporary file so that other threads and processes never see a partial entry.
+        File tmpFile = File.createTempFile("entry", ".tmp", mDir);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(results.getQuietPeakToPeak());
+                results.mLog.write(out);
+                List<Program> programs = results.getPrograms();
+                out.writeInt(programs.size());
+                for (Program program : programs) {
+                    out.writeInt(program.getTrack());
+                    out.writeInt(program.getCopy());
+                    out.writeInt(program.getStartFrame());
+                    out.writeUTF(program.getDecoderName());
+                    out.writeInt(program.getBitCount());
+                    out.writeInt(program.getSearchStartFrame());
+                    out.writeInt(program.getEndFrame());
+                    out.writeInt(program.getBinary().length);
+                    out.write(program.getBinary());
+                    writeBadSections(out, program.getBadSections());
+                }
+                writeBadSections(out, results.getBadSections());
+            }
+            Files.move(tmpFile.toPath(), getFile(key).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmpFile.delete();
+        }
+
+        evict();
+    }
+
+    /**
+     * Delete entries that haven't been used for too long, then the least recently used
+     * ones until the total size fits.
+     */
+    private synchronized void evict() {
+        File[] files = mDir.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (files == null) {
+            return;
+        }
+
+        // Most recently used first. Loading an entry touches it, so this may be out of
+        // date by the time it's sorted, but that only changes which entries are kept.
+        List<EntryFile> entries = new ArrayList<>();
+        for (File file : files) {
+            entries.add(new EntryFile(file));
+        }
+        entries.sort(Comparator.comparingLong((EntryFile entry) -> entry.mLastModified).reversed());
+
+        long now = System.currentTimeMillis();
+        long totalBytes = 0;
+        for (EntryFile entry : entries) {
+            if (now - entry.mLastModified > mMaxAgeMillis || totalBytes + entry.mLength > mMaxBytes) {
+                entry.mFile.delete();
+            } else {
+                totalBytes += entry.mLength;
+            }
+        }
+    }
+
+    private File getFile(String key) {
+        return new File(mDir, key + EXTENSION);
+    }
+
+    private static void writeBadSections(DataOutputStream out, List<BitSection> badSections) throws IOException {
+        out.writeInt(badSections.size());
+        for (BitSection badSection : badSections) {
+            badSection.write(out);
+        }
+    }
+
+    private static List<BitSection> readBadSections(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<BitSection> badSections = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            badSections.add(BitSection.read(in));
+        }
+        return badSections;
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Measurements of one run of the reader, for spotting slow runs and degraded captures.
+ * Stage times are summed over the threads that ran the stage, so with several threads
+ * they can add up to more than the elapsed time.
+ */
+class DecodeMetrics {
+    /**
+     * How often the heap is sampled while reading a tape.
+     */
+    private static final long HEAP_SAMPLE_MILLIS = 20;
+    private static final MemoryMXBean MEMORY_BEAN = ManagementFactory.getMemoryMXBean();
+    /**
+     * Shared by all heap samplers, so that batch runs don't start a thread per file.
+     */
+    private static final ScheduledExecutorService HEAP_SAMPLER_EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "heap sampler");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private final AtomicLongArray mStageNanos = new AtomicLongArray(Stage.values().length);
+    private final List<ProgramMetrics> mPrograms = Collections.synchronizedList(new ArrayList<>());
+    private long mSampleCount;
+    private long mDecodeNanos;
+    private long mPeakHeapBytes;
+
+    /**
+     * Parts of the run that are timed.
+     */
+    enum Stage {
+        /**
+         * Opening and mapping the input file. Samples are only read from disk as they're
+         * filtered, so most of the reading is counted in the filtering.
+         */
+        READ,
+        /**
+         * Conditioning the samples for the decoders.
+         */
+        FILTER,
+        /**
+         * Running the decoders.
+         */
+        DECODE,
+        /**
+         * Generating the output WAV and Basic files.
+         */
+        ENCODE,
+        /**
+         * Writing the output files.
+         */
+        WRITE;
+
+        String getName() {
+            return name().toLowerCase();
+        }
+    }
+
+    /**
+     * What we know about one decoded program.
+     */
+    private static class ProgramMetrics {
+        private final int mTrack;
+        private final int mCopy;
+        private final String mDecoderName;
+        private final int mBitCount;
+        private final int mByteCount;
+        private final int mBadSectionCount;
+
+        ProgramMetrics(int track, int copy, String decoderName, int bitCount, int byteCount, int badSectionCount) {
+            mTrack = track;
+            mCopy = copy;
+            mDecoderName = decoderName;
+            mBitCount = bitCount;
+            mByteCount = byteCount;
+            mBadSectionCount = badSectionCount;
+        }
+    }
+
+    /**
+     * Totals for one decoder.
+     */
+    private static class DecoderMetrics {
+        private int mProgramCount;
+        private long mBitCount;
+        private long mByteCount;
+    }
+
+    /**
+     * Add time spent in the stage. Can be called from any thread.
+     */
+    void addStageTime(Stage stage, long nanos) {
+        mStageNanos.addAndGet(stage.ordinal(), nanos);
+    }
+
+    /**
+     * Add the stage times of the other metrics to these.
+     */
+    void addStageTimes(DecodeMetrics other) {
+        for (Stage stage : Stage.values()) {
+            addStageTime(stage, other.getStageNanos(stage));
+        }
+    }
+
+    long getStageNanos(Stage stage) {
+        return mStageNanos.get(stage.ordinal());
+    }
+
+    /**
+     * Record the elapsed time of filtering and decoding all samples.
+     */
+    void setDecodeTime(long sampleCount, long nanos) {
+        mSampleCount = sampleCount;
+        mDecodeNanos = nanos;
+    }
+
+    /**
+     * Samples filtered and decoded per second of elapsed time.
+     */
+    double getSamplesPerSecond() {
+        return mDecodeNanos == 0 ? 0 : mSampleCount*1e9/mDecodeNanos;
+    }
+
+    /**
+     * Record a program once its bad sections have been added to it.
+     */
+    void addProgram(Program program) {
+        mPrograms.add(new ProgramMetrics(program.getTrack(), program.getCopy(), program.getDecoderName(),
+                program.getBitCount(), program.getBinary().length, program.getBadSections().size()));
+    }
+
+    /**
+     * Record the highest use of the heap while the tape was read, in bytes.
+     */
+    void setPeakHeapBytes(long peakHeapBytes) {
+        mPeakHeapBytes = peakHeapBytes;
+    }
+
+    long getPeakHeapBytes() {
+        return mPeakHeapBytes;
+    }
+
+    /**
+     * Samples the use of the heap in the background, to find its peak while one tape is read.
+     * The memory pools' own peaks aren't used because they're kept for the life of the JVM
+     * and each pool peaks at a different time. The heap is shared, so in batch mode this
+     * includes the files read at the same time.
+     */
+    static class HeapSampler {
+        private final AtomicLong mPeakBytes = new AtomicLong();
+        private final ScheduledFuture<?> mFuture;
+
+        HeapSampler() {
+            sample();
+            mFuture = HEAP_SAMPLER_EXECUTOR.scheduleAtFixedRate(this::sample,
+                    HEAP_SAMPLE_MILLIS, HEAP_SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Highest use of the heap since the sampler was made, in bytes.
+         */
+        long getPeakBytes() {
+            sample();
+            return mPeakBytes.get();
+        }
+
+        /**
+         * Stop sampling. Can be called more than once.
+         */
+        void stop() {
+            mFuture.cancel(false);
+        }
+
+        private void sample() {
+            mPeakBytes.accumulateAndGet(MEMORY_BEAN.getHeapMemoryUsage().getUsed(), Math::max);
+        }
+    }
+
+    private Map<String, DecoderMetrics> getDecoderMetrics() {
+        Map<String, DecoderMetrics> decoderMetricsMap = new TreeMap<>();
+        synchronized (mPrograms) {
+            for (ProgramMetrics programMetrics : mPrograms) {
+                DecoderMetrics decoderMetrics = decoderMetricsMap.computeIfAbsent(programMetrics.mDecoderName,
+                        name -> new DecoderMetrics());
+                decoderMetrics.mProgramCount++;
+                decoderMetrics.mBitCount += programMetrics.mBitCount;
+                decoderMetrics.mByteCount += programMetrics.mByteCount;
+            }
+        }
+        return decoderMetricsMap;
+    }
+
+    /**
+     * Human-readable summary, one item per line.
+     *
+     * @param totalNanos elapsed time of the whole run.
+     */
+    String getSummary(long totalNanos) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Finished in %.3f s:", totalNanos/1e9));
+        for (Stage stage : Stage.values()) {
+            sb.append(String.format(" %s %.3f s", stage.getName(), getStageNanos(stage)/1e9));
+        }
+        sb.append('\n');
+        sb.append(String.format("Decoded %,d samples at %,.0f samples/s\n", mSampleCount, getSamplesPerSecond()));
+        for (Map.Entry<String, DecoderMetrics> entry : getDecoderMetrics().entrySet()) {
+            DecoderMetrics decoderMetrics = entry.getValue();
+            sb.append(String.format("Decoder \"%s\": %,d programs, %,d bits, %,d bytes\n", entry.getKey(),
+                    decoderMetrics.mProgramCount, decoderMetrics.mBitCount, decoderMetrics.mByteCount));
+        }
+        synchronized (mPrograms) {
+            for (ProgramMetrics programMetrics : mPrograms) {
+                sb.append(String.format("Program %d-%d: %,d bytes, %,d bad sections\n", programMetrics.mTrack,
+                        programMetrics.mCopy, programMetrics.mByteCount, programMetrics.mBadSectionCount));
+            }
+        }
+        sb.append(String.format("Peak heap %,d MB\n", getPeakHeapBytes()/(1024*1024)));
+        return sb.toString();
+    }
+
+    /**
+     * All metrics as a JSON object.
+     *
+     * @param inputPathname the file that was read.
+     * @param totalNanos elapsed time of the whole run.
+     */
+    String toJson(String inputPathname, long totalNanos) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"input\": ");
+        EventLog.appendJsonString(sb, inputPathname);
+        sb.append(",\n  \"seconds\": ").append(totalNanos/1e9);
+        sb.append(",\n  \"stageSeconds\": {");
+        for (Stage stage : Stage.values()) {
+            sb.append(stage.ordinal() == 0 ? " " : ", ");
+            sb.append('"').append(stage.getName()).append("\": ").append(getStageNanos(stage)/1e9);
+        }
+        sb.append(" },\n  \"samples\": ").append(mSampleCount);
+        sb.append(",\n  \"samplesPerSecond\": ").append(Math.round(getSamplesPerSecond()));
+        sb.append(",\n  \"decoders\": {");
+        String separator = "\n";
+        for (Map.Entry<String, DecoderMetrics> entry : getDecoderMetrics().entrySet()) {
+            DecoderMetrics decoderMetrics = entry.getValue();
+            sb.append(separator).append("    ");
+            EventLog.appendJsonString(sb, entry.getKey());
+            sb.append(": { \"programs\": ").append(decoderMetrics.mProgramCount)
+                    .append(", \"bits\": ").append(decoderMetrics.mBitCount)
+                    .append(", \"bytes\": ").append(decoderMetrics.mByteCount).append(" }");
+            separator = ",\n";
+        }
+        sb.append("\n  },\n  \"programs\": [");
+        separator = "\n";
+        synchronized (mPrograms) {
+            for (ProgramMetrics programMetrics : mPrograms) {
+                sb.append(separator).append("    { \"track\": ").append(programMetrics.mTrack)
+                        .append(", \"copy\": ").append(programMetrics.mCopy)
+                        .append(", \"decoder\": ");
+                EventLog.appendJsonString(sb, programMetrics.mDecoderName);
+                sb.append(", \"bits\": ").append(programMetrics.mBitCount)
+                        .append(", \"bytes\": ").append(programMetrics.mByteCount)
+                        .append(", \"badSections\": ").append(programMetrics.mBadSectionCount).append(" }");
+                separator = ",\n";
+            }
+        }
+        sb.append("\n  ],\n  \"peakHeapBytes\": ").append(getPeakHeapBytes());
+        sb.append("\n}\n");
+        return sb.toString();
+    }
+}
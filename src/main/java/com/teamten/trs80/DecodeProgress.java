@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of decoding a tape, for showing while it's decoded on another thread. Readers
+ * add the frames they've gone through, and stop early once decoding is canceled.
+ */
+class DecodeProgress {
+    private final AtomicLong mDoneFrames = new AtomicLong();
+    private volatile int mFrameCount = 0;
+    private volatile long mStartTime = 0;
+    private volatile boolean mCanceled = false;
+
+    /**
+     * Start timing the decoding of these many frames.
+     */
+    void start(int frameCount) {
+        mDoneFrames.set(0);
+        mStartTime = System.nanoTime();
+        mFrameCount = frameCount;
+    }
+
+    /**
+     * Record that these many more frames were decoded or skipped. Segments of the
+     * tape may be decoded at the same time on several threads.
+     */
+    void addFrames(int frameCount) {
+        mDoneFrames.addAndGet(frameCount);
+    }
+
+    /**
+     * Fraction of the frames decoded so far, from 0 to 1.
+     */
+    double getFraction() {
+        int frameCount = mFrameCount;
+        return frameCount == 0 ? 0 : Math.min((double) mDoneFrames.get()/frameCount, 1);
+    }
+
+    /**
+     * Frames decoded per second since the start.
+     */
+    double getFramesPerSecond() {
+        long startTime = mStartTime;
+        double seconds = (System.nanoTime() - startTime)/1e9;
+        return startTime == 0 || seconds == 0 ? 0 : mDoneFrames.get()/seconds;
+    }
+
+    /**
+     * Estimated seconds until the end, at the rate so far, or -1 if not known yet.
+     */
+    double getRemainingSeconds() {
+        double framesPerSecond = getFramesPerSecond();
+        int frameCount = mFrameCount;
+        return framesPerSecond == 0 || frameCount == 0 ? -1
+                : Math.max(frameCount - mDoneFrames.get(), 0)/framesPerSecond;
+    }
+
+    /**
+     * Ask the readers to stop. What was found so far is kept.
+     */
+    void cancel() {
+        mCanceled = true;
+    }
+
+    boolean isCanceled() {
+        return mCanceled;
+    }
+}
@@ -0,0 +1,587 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Log of what happened while reading a tape. Events keep their values as primitive fields
+ * and are only formatted when the log is rendered, so logging a warning in a decoder is
+ * cheap. The number of warnings can be limited to keep the log small on bad tapes.
+ */
+class EventLog {
+    private final List<Event> mEvents = new ArrayList<>();
+    private int mMaxWarnings = Integer.MAX_VALUE;
+    private int mWarningCount = 0;
+    private int mSuppressedCount = 0;
+
+    /**
+     * How to render the log.
+     */
+    enum Format {
+        /**
+         * Human-readable lines.
+         */
+        TEXT,
+        /**
+         * One JSON object per line.
+         */
+        JSON,
+    }
+
+    /**
+     * One thing that happened.
+     */
+    abstract static class Event {
+        /**
+         * Name of the type of event, for JSON.
+         */
+        abstract String getType();
+
+        /**
+         * Append the event's text line, with its newline.
+         */
+        abstract void appendText(StringBuilder sb);
+
+        /**
+         * Append the event's JSON fields other than its type, each preceded by a comma.
+         */
+        abstract void appendJsonFields(StringBuilder sb);
+
+        /**
+         * Write the event's fields, for {@link EventLog#read(DataInput)}.
+         */
+        abstract void write(DataOutput out) throws IOException;
+
+        /**
+         * Whether this is a warning, which counts toward the limit.
+         */
+        boolean isWarning() {
+            return false;
+        }
+    }
+
+    /**
+     * Free-form text, for events that are neither frequent nor of interest to tools.
+     */
+    private static class MessageEvent extends Event {
+        private final String mText;
+
+        MessageEvent(String text) {
+            mText = text;
+        }
+
+        @Override
+        String getType() {
+            return "message";
+        }
+
+        @Override
+        void appendText(StringBuilder sb) {
+            sb.append(mText).append('\n');
+        }
+
+        @Override
+        void appendJsonFields(StringBuilder sb) {
+            appendJsonField(sb, "text", mText);
+        }
+
+        @Override
+        void write(DataOutput out) throws IOException {
+            out.writeUTF(mText);
+        }
+    }
+
+    /**
+     * Start of the search for the next program.
+     */
+    private static class InstanceEvent extends Event {
+        private final int mInstanceNumber;
+
+        InstanceEvent(int instanceNumber) {
+            mInstanceNumber = instanceNumber;
+        }
+
+        @Override
+        String getType() {
+            return "instance";
+        }
+
+        @Override
+        void appendText(StringBuilder sb) {
+            sb.append("--------------------------------------- ").append(mInstanceNumber).append('\n');
+        }
+
+        @Override
+        void appendJsonFields(StringBuilder sb) {
+            appendJsonField(sb, "instance", mInstanceNumber);
+        }
+
+        @Override
+        void write(DataOutput out) throws IOException {
+            out.writeInt(mInstanceNumber);
+        }
+    }
+
+    /**
+     * A decoder recognized its encoding.
+     */
+    private static class DetectionEvent extends Event {
+        private final String mDecoderName;
+        private final int mTrack;
+        private final int mCopy;
+        private final int mFrame;
+        private final double mLeadTime;
+
+        DetectionEvent(String decoderName, int track, int copy, int frame, double leadTime) {
+            mDecoderName = decoderName;
+            mTrack = track;
+            mCopy = copy;
+            mFrame = frame;
+            mLeadTime = leadTime;
+        }
+
+        @Override
+        String getType() {
+            return "detection";
+        }
+
+        @Override
+        void appendText(StringBuilder sb) {
+            sb.append(String.format("Decoder \"%s\" detected %d-%d at %s after %.1f seconds.\n",
+                    mDecoderName, mTrack, mCopy, AudioUtils.frameToTimestamp(mFrame), mLeadTime));
+        }
+
+        @Override
+        void appendJsonFields(StringBuilder sb) {
+            appendJsonField(sb, "decoder", mDecoderName);
+            appendJsonField(sb, "track", mTrack);
+            appendJsonField(sb, "copy", mCopy);
+            appendJsonField(sb, "frame", mFrame);
+            appendJsonField(sb, "leadTime", mLeadTime);
+        }
+
+        @Override
+        void write(DataOutput out) throws IOException {
+            out.writeUTF(mDecoderName);
+            out.writeInt(mTrack);
+            out.writeInt(mCopy);
+            out.writeInt(mFrame);
+            out.writeDouble(mLeadTime);
+        }
+    }
+
+    /**
+     * A low-speed bit didn't have the expected value.
+     */
+    private static class BadBitEvent extends Event {
+        private final int mFrame;
+        private final int mTimeDiff;
+        private final int mLastPulseFrame;
+
+        BadBitEvent(int frame, int timeDiff, int lastPulseFrame) {
+            mFrame = frame;
+            mTimeDiff = timeDiff;
+            mLastPulseFrame = lastPulseFrame;
+        }
+
+        @Override
+        String getType() {
+            return "badBit";
+        }
+
+        @Override
+        void appendText(StringBuilder sb) {
+            sb.append("Warning: At bit of wrong value at ").append(AudioUtils.frameToTimestamp(mFrame))
+                    .append(", diff = ").append(mTimeDiff)
+                    .append(", last = ").append(AudioUtils.frameToTimestamp(mLastPulseFrame)).append('\n');
+        }
+
+        @Override
+        void appendJsonFields(StringBuilder sb) {
+            appendJsonField(sb, "frame", mFrame);
+            appendJsonField(sb, "diff", mTimeDiff);
+            appendJsonField(sb, "lastFrame", mLastPulseFrame);
+        }
+
+        @Override
+        void write(DataOutput out) throws IOException {
+            out.writeInt(mFrame);
+            out.writeInt(mTimeDiff);
+            out.writeInt(mLastPulseFrame);
+        }
+
+        @Override
+        boolean isWarning() {
+            return true;
+        }
+    }
+
+    /**
+     * A high-speed byte didn't start with a zero.
+     */
+    private static class BadStartBitEvent extends Event {
+        private final int mByteIndex;
+        private final int mFrame;
+        private final int mCycleSize;
+
+        BadStartBitEvent(int byteIndex, int frame, int cycleSize) {
+            mByteIndex = byteIndex;
+            mFrame = frame;
+            mCycleSize = cycleSize;
+        }
+
+        @Override
+        String getType() {
+            return "badStartBit";
+        }
+
+        @Override
+        void appendText(StringBuilder sb) {
+            sb.append("Bad start bit at byte ").append(mByteIndex)
+                    .append(", ").append(AudioUtils.frameToTimestamp(mFrame))
+                    .append(", cycle size ").append(mCycleSize).append(".\n");
+        }
+
+        @Override
+        void appendJsonFields(StringBuilder sb) {
+            appendJsonField(sb, "byte", mByteIndex);
+            appendJsonField(sb, "frame", mFrame);
+            appendJsonField(sb, "cycleSize", mCycleSize);
+        }
+
+        @Override
+        void write(DataOutput out) throws IOException {
+            out.writeInt(mByteIndex);
+            out.writeInt(mFrame);
+            out.writeInt(mCycleSize);
+        }
+
+        @Override
+        boolean isWarning() {
+            return true;
+        }
+    }
+
+    /**
+     * A program ended normally.
+     */
+    private static class EndOfProgramEvent extends Event {
+        private final int mFrame;
+
+        EndOfProgramEvent(int frame) {
+            mFrame = frame;
+        }
+
+        @Override
+        String getType() {
+            return "endOfProgram";
+        }
+
+        @Override
+        void appendText(StringBuilder sb) {
+            sb.append("Found end of program at ").append(AudioUtils.frameToTimestamp(mFrame)).append(".\n");
+        }
+
+        @Override
+        void appendJsonFields(StringBuilder sb) {
+            appendJsonField(sb, "frame", mFrame);
+        }
+
+        @Override
+        void write(DataOutput out) throws IOException {
+            out.writeInt(mFrame);
+        }
+    }
+
+    /**
+     * Something went wrong.
+     */
+    private static class ErrorEvent extends Event {
+        private final String mText;
+
+        ErrorEvent(String text) {
+            mText = text;
+        }
+
+        @Override
+        String getType() {
+            return "error";
+        }
+
+        @Override
+        void appendText(StringBuilder sb) {
+            sb.append(mText).append('\n');
+        }
+
+        @Override
+        void appendJsonFields(StringBuilder sb) {
+            appendJsonField(sb, "text", mText);
+        }
+
+        @Override
+        void write(DataOutput out) throws IOException {
+            out.writeUTF(mText);
+        }
+    }
+
+    /**
+     * Warnings were dropped because of the limit.
+     */
+    private static class SuppressedEvent extends Event {
+        private final int mCount;
+
+        SuppressedEvent(int count) {
+            mCount = count;
+        }
+
+        @Override
+        String getType() {
+            return "suppressed";
+        }
+
+        @Override
+        void appendText(StringBuilder sb) {
+            sb.append(String.format("Suppressed %,d more warnings.\n", mCount));
+        }
+
+        @Override
+        void appendJsonFields(StringBuilder sb) {
+            appendJsonField(sb, "count", mCount);
+        }
+
+        @Override
+        void write(DataOutput out) throws IOException {
+            out.writeInt(mCount);
+        }
+    }
+
+    /**
+     * Maximum number of warnings to keep. Later ones are only counted.
+     */
+    void setMaxWarnings(int maxWarnings) {
+        mMaxWarnings = maxWarnings;
+    }
+
+    /**
+     * Log a line of free-form text, without its newline.
+     */
+    void message(String text) {
+        add(new MessageEvent(text));
+    }
+
+    /**
+     * Log the start of the search for the next program.
+     */
+    void instance(int instanceNumber) {
+        add(new InstanceEvent(instanceNumber));
+    }
+
+    /**
+     * Log that a decoder recognized its encoding.
+     *
+     * @param leadTime seconds between the start of the search and the detection.
+     */
+    void detection(String decoderName, int track, int copy, int frame, double leadTime) {
+        add(new DetectionEvent(decoderName, track, copy, frame, leadTime));
+    }
+
+    /**
+     * Log a low-speed bit of the wrong value.
+     */
+    void badBit(int frame, int timeDiff, int lastPulseFrame) {
+        if (countWarning()) {
+            mEvents.add(new BadBitEvent(frame, timeDiff, lastPulseFrame));
+        }
+    }
+
+    /**
+     * Log a high-speed start bit that wasn't zero.
+     */
+    void badStartBit(int byteIndex, int frame, int cycleSize) {
+        if (countWarning()) {
+            mEvents.add(new BadStartBitEvent(byteIndex, frame, cycleSize));
+        }
+    }
+
+    /**
+     * Log the normal end of a program.
+     */
+    void endOfProgram(int frame) {
+        add(new EndOfProgramEvent(frame));
+    }
+
+    /**
+     * Log an error, with its full text.
+     */
+    void error(String text) {
+        add(new ErrorEvent(text));
+    }
+
+    private void add(Event event) {
+        if (!event.isWarning() || countWarning()) {
+            mEvents.add(event);
+        }
+    }
+
+    /**
+     * Count a warning about to be logged, and return whether it's under the limit. Checked before
+     * making the event, so that suppressed warnings cost nothing.
+     */
+    private boolean countWarning() {
+        if (mWarningCount >= mMaxWarnings) {
+            mSuppressedCount++;
+            return false;
+        }
+        mWarningCount++;
+        return true;
+    }
+
+    /**
+     * Append all events of the other log, and note how many of its warnings were dropped.
+     */
+    void addAll(EventLog other) {
+        for (Event event : other.mEvents) {
+            add(event);
+        }
+        if (other.mSuppressedCount > 0) {
+            mEvents.add(new SuppressedEvent(other.mSuppressedCount));
+        }
+    }
+
+    /**
+     * Write all events in a form that {@link #read(DataInput)} reads back.
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(mEvents.size());
+        for (Event event : mEvents) {
+            out.writeUTF(event.getType());
+            event.write(out);
+        }
+    }
+
+    /**
+     * Append the events written by {@link #write(DataOutput)}. They were already limited
+     * when they were first logged, so they're not limited again.
+     */
+    void read(DataInput in) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String type = in.readUTF();
+            switch (type) {
+                case "message":
+                    mEvents.add(new MessageEvent(in.readUTF()));
+                    break;
+
+                case "instance":
+                    mEvents.add(new InstanceEvent(in.readInt()));
+                    break;
+
+                case "detection":
+                    mEvents.add(new DetectionEvent(in.readUTF(), in.readInt(), in.readInt(), in.readInt(),
+                            in.readDouble()));
+                    break;
+
+                case "badBit":
+                    mEvents.add(new BadBitEvent(in.readInt(), in.readInt(), in.readInt()));
+                    break;
+
+                case "badStartBit":
+                    mEvents.add(new BadStartBitEvent(in.readInt(), in.readInt(), in.readInt()));
+                    break;
+
+                case "endOfProgram":
+                    mEvents.add(new EndOfProgramEvent(in.readInt()));
+                    break;
+
+                case "error":
+                    mEvents.add(new ErrorEvent(in.readUTF()));
+                    break;
+
+                case "suppressed":
+                    mEvents.add(new SuppressedEvent(in.readInt()));
+                    break;
+
+                default:
+                    throw new IOException("Unknown event type " + type);
+            }
+        }
+    }
+
+    /**
+     * Number of events logged so far.
+     */
+    int size() {
+        return mEvents.size();
+    }
+
+    /**
+     * Render the events from the specified index on.
+     */
+    String render(Format format, int fromIndex) {
+        StringBuilder sb = new StringBuilder();
+        for (Event event : mEvents.subList(fromIndex, mEvents.size())) {
+            switch (format) {
+                case TEXT:
+                    event.appendText(sb);
+                    break;
+
+                case JSON:
+                    sb.append("{\"type\":\"").append(event.getType()).append('"');
+                    event.appendJsonFields(sb);
+                    sb.append("}\n");
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void appendJsonField(StringBuilder sb, String name, long value) {
+        sb.append(",\"").append(name).append("\":").append(value);
+    }
+
+    private static void appendJsonField(StringBuilder sb, String name, double value) {
+        sb.append(",\"").append(name).append("\":").append(value);
+    }
+
+    private static void appendJsonField(StringBuilder sb, String name, String value) {
+        sb.append(",\"").append(name).append("\":");
+        appendJsonString(sb, value);
+    }
+
+    /**
+     * Append the string as a quoted and escaped JSON string.
+     */
+    static void appendJsonString(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < ' ') {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+}
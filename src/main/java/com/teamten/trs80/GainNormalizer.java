@@ -0,0 +1,53 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+/**
+ * Automatic gain control, for tapes that were recorded or digitized too quietly for the
+ * decoders' fixed thresholds. It follows the peak level of the signal and scales it so
+ * that the peaks are at a fixed target.
+ */
+class GainNormalizer implements SampleFilter {
+    /**
+     * Level we scale peaks to. This matches the level of our generated audio.
+     */
+    private static final int TARGET_PEAK = 16384;
+    /**
+     * Envelope below which we stop increasing the gain, so that we don't amplify hiss
+     * in silent sections into something that looks like a signal.
+     */
+    private static final int MIN_ENVELOPE = 2000;
+    /**
+     * How much the envelope decays per sample. This gives a release time of about 50 ms.
+     */
+    private static final double DECAY = Math.exp(-1.0/(AudioUtils.HZ*0.050));
+    private double mEnvelope = MIN_ENVELOPE;
+
+    @Override
+    public void filter(short[] samples, int offset, int count) {
+        int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            int sample = samples[i];
+
+            // Peak follower with instant attack and slow release.
+            mEnvelope = Math.max(Math.abs(sample), Math.max(mEnvelope*DECAY, MIN_ENVELOPE));
+
+            long value = Math.round(sample*TARGET_PEAK/mEnvelope);
+            samples[i] = (short) Math.min(Math.max(value, Short.MIN_VALUE), Short.MAX_VALUE);
+        }
+    }
+}
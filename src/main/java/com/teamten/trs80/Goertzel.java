@@ -0,0 +1,49 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+/**
+ * Measures the power of a single frequency in a run of samples.
+ */
+class Goertzel {
+    private final double mCoefficient;
+    private double mS1 = 0;
+    private double mS2 = 0;
+
+    Goertzel(double frequency) {
+        mCoefficient = 2*Math.cos(2*Math.PI*frequency/AudioUtils.HZ);
+    }
+
+    void add(double sample) {
+        double s0 = sample + mCoefficient*mS1 - mS2;
+        mS2 = mS1;
+        mS1 = s0;
+    }
+
+    /**
+     * Power of the frequency in the samples added since the last reset. A sine of amplitude A
+     * over N samples has a power of about (A*N/2)^2.
+     */
+    double getPower() {
+        return mS1*mS1 + mS2*mS2 - mCoefficient*mS1*mS2;
+    }
+
+    void reset() {
+        mS1 = 0;
+        mS2 = 0;
+    }
+}
@@ -16,33 +16,80 @@
 
 package com.teamten.trs80;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.awt.BorderLayout;
+import java.awt.Button;
 import java.awt.Canvas;
+import java.awt.Color;
+import java.awt.EventQueue;
 import java.awt.Font;
+import java.awt.FontMetrics;
 import java.awt.Frame;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Panel;
+import java.awt.Scrollbar;
 import java.awt.TextArea;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 import java.awt.event.ItemEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
- * Graphical interface for browsing the results of cassette decoding.
+ * Graphical interface for browsing the results of cassette decoding. The tape is decoded
+ * on another thread, which gives the programs to this as they're found. They're handed
+ * to the event dispatch thread, where all the UI is changed.
  */
 class Gui {
     private static final int WIDTH = 1600;
     private static final int HEIGHT = 1000;
     private static final int TITLE_BAR_HEIGHT = 20;
+    private static final int PROGRESS_HEIGHT = 40;
+    private static final int BUTTON_HEIGHT = 25;
+    /**
+     * Milliseconds between updates of the progress bar.
+     */
+    private static final int PROGRESS_PERIOD = 250;
+    /**
+     * Number of Basic listings to keep, for going back and forth between programs.
+     */
+    private static final int MAX_LISTINGS = 32;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private final List<InfoSelector> mInfoSelectorList = new ArrayList<>();
+    private final java.awt.List mList;
+    private final ProgressCanvas mProgressCanvas;
+    private final Button mCancelButton;
+    private final Timer mProgressTimer;
     private final TextArea mTextArea;
-    private final BitHistoryCanvas mBitHistoryOriginalCanvas;
-    private final BitHistoryCanvas mBitHistoryFilteredCanvas;
+    private final HexDumpView mHexDumpView;
+    /**
+     * Basic listings by program, made on the listing thread.
+     */
+    private final Cache<Program, String> mListings = CacheBuilder.newBuilder().maximumSize(MAX_LISTINGS).build();
+    private final ExecutorService mListingExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("listing").setDaemon(true).build());
+    private final BitSectionCanvas mBitSectionOriginalCanvas;
+    private final BitSectionCanvas mBitSectionFilteredCanvas;
+    private final WaveformCanvas mWaveformCanvas;
+    /**
+     * The entry being shown, to drop listings that are done after another is picked.
+     */
+    private InfoSelector mSelected;
 
     /**
      * Each row of the menu has a type.
      */
-    private enum InfoType { METADATA, BINARY, BASIC, BAD_SECTION };
+    private enum InfoType { TAPE, METADATA, BINARY, BASIC, BAD_SECTION };
 
     /**
      * For each row of the menu.
@@ -70,8 +117,12 @@ class Gui {
             return mInfoType;
         }
 
-        public BitHistory getBadSection() {
-            return mProgram.getBadSections().get(mBadSectionIndex);
+        public BitSection getBadSection() {
+            BitSection badSection = mProgram.getBadSections().get(mBadSectionIndex);
+
+            // Show more of the program if we have it.
+            BitTimeline timeline = mProgram.getTimeline();
+            return timeline == null ? badSection : timeline.getContext(badSection);
         }
 
         /**
@@ -79,6 +130,9 @@ class Gui {
          */
         public String getMenuString() {
             switch (mInfoType) {
+                case TAPE:
+                    return "Whole tape";
+
                 case METADATA:
                     return String.format("Track %d, copy %d", mProgram.getTrack(), mProgram.getCopy());
 
@@ -97,58 +151,80 @@ class Gui {
         }
     }
 
-    public Gui(Results results) {
+    /**
+     * Open the UI on the samples of the tape, which is being decoded with this progress.
+     */
+    public Gui(SampleWindows sampleWindows, DecodeProgress progress) {
         Frame frame = new Frame();
 
-        // Create our UI list.
-        List<InfoSelector> infoSelectorList = new ArrayList<>();
-        java.awt.List list = new java.awt.List(10, false);
-        list.setBounds(0, TITLE_BAR_HEIGHT, 200, HEIGHT - TITLE_BAR_HEIGHT);
-        list.addItemListener(e -> {
+        // Create our UI list. Programs are added as they're found.
+        int listHeight = HEIGHT - TITLE_BAR_HEIGHT - PROGRESS_HEIGHT - BUTTON_HEIGHT;
+        mList = new java.awt.List(10, false);
+        mList.setBounds(0, TITLE_BAR_HEIGHT, 200, listHeight);
+        mList.addItemListener(e -> {
             if (e.getStateChange() == ItemEvent.SELECTED) {
                 int index = (Integer) e.getItem();
-                showProgramInfo(infoSelectorList.get(index));
+                showProgramInfo(mInfoSelectorList.get(index));
             }
         });
-
-        // Create all the entries in our list chooser.
-        for (Program program : results.getPrograms()) {
-            infoSelectorList.add(new InfoSelector(program, InfoType.METADATA));
-            infoSelectorList.add(new InfoSelector(program, InfoType.BINARY));
-            if (program.isProgram()) {
-                infoSelectorList.add(new InfoSelector(program, InfoType.BASIC));
-            }
-            for (int i = 0; i < program.getBadSections().size(); i++) {
-                infoSelectorList.add(new InfoSelector(program, InfoType.BAD_SECTION, i));
+        addInfoSelector(new InfoSelector(null, InfoType.TAPE));
+        frame.add(mList);
+
+        // Progress of the decoding, and a way to stop it.
+        mProgressCanvas = new ProgressCanvas(progress);
+        mProgressCanvas.setBounds(0, TITLE_BAR_HEIGHT + listHeight, 200, PROGRESS_HEIGHT);
+        frame.add(mProgressCanvas);
+        mCancelButton = new Button("Cancel");
+        mCancelButton.setBounds(0, HEIGHT - BUTTON_HEIGHT, 200, BUTTON_HEIGHT);
+        mCancelButton.addActionListener(e -> {
+            progress.cancel();
+            mCancelButton.setEnabled(false);
+            mProgressCanvas.repaint();
+        });
+        frame.add(mCancelButton);
+        mProgressTimer = new Timer("progress", true);
+        mProgressTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                mProgressCanvas.repaint();
             }
-        }
-        // Add the entries to the list.
-        for (InfoSelector infoSelector : infoSelectorList) {
-            list.add(infoSelector.getMenuString());
-        }
-        frame.add(list);
+        }, PROGRESS_PERIOD, PROGRESS_PERIOD);
 
-        // Text area for metadata, binary, and Basic program.
+        // Text area for metadata and Basic program.
+        Font font = new Font(Font.MONOSPACED, Font.PLAIN, 12);
         mTextArea = new TextArea();
         mTextArea.setBounds(200, TITLE_BAR_HEIGHT, WIDTH - 200, HEIGHT - TITLE_BAR_HEIGHT);
-        mTextArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        mTextArea.setFont(font);
         frame.add(mTextArea);
 
+        // Binary, formatted as it's scrolled.
+        mHexDumpView = new HexDumpView(font);
+        mHexDumpView.setBounds(200, TITLE_BAR_HEIGHT, WIDTH - 200, HEIGHT - TITLE_BAR_HEIGHT);
+        frame.add(mHexDumpView);
+
         // Canvas for drawing bit history.
         int y = TITLE_BAR_HEIGHT;
         int margin = 2;
         int height = (HEIGHT - TITLE_BAR_HEIGHT - margin)/2;
-        mBitHistoryOriginalCanvas = new BitHistoryCanvas(results.getOriginalSamples());
-        mBitHistoryOriginalCanvas.setBounds(200, y, WIDTH - 200, height);
-        frame.add(mBitHistoryOriginalCanvas);
+        mBitSectionOriginalCanvas = new BitSectionCanvas(sampleWindows, false);
+        mBitSectionOriginalCanvas.setBounds(200, y, WIDTH - 200, height);
+        frame.add(mBitSectionOriginalCanvas);
         y += height + margin;
-        mBitHistoryFilteredCanvas = new BitHistoryCanvas(results.getFilteredSamples());
-        mBitHistoryFilteredCanvas.setBounds(200, y, WIDTH - 200, HEIGHT - y);
-        frame.add(mBitHistoryFilteredCanvas);
+        mBitSectionFilteredCanvas = new BitSectionCanvas(sampleWindows, true);
+        mBitSectionFilteredCanvas.setBounds(200, y, WIDTH - 200, HEIGHT - y);
+        frame.add(mBitSectionFilteredCanvas);
 
-        // To quit the program.
+        // Canvas for the whole tape. Reading the whole tape takes a while, so do it in the background.
+        mWaveformCanvas = new WaveformCanvas();
+        mWaveformCanvas.setBounds(200, TITLE_BAR_HEIGHT, WIDTH - 200, HEIGHT - TITLE_BAR_HEIGHT);
+        frame.add(mWaveformCanvas);
+
+        // To quit the program. There's no point in decoding the rest.
         frame.addWindowListener(new WindowAdapter(){
             public void windowClosing(WindowEvent e) {
+                progress.cancel();
+                mProgressTimer.cancel();
+                mListingExecutor.shutdownNow();
                 frame.dispose();
             }
         });
@@ -157,55 +233,157 @@ class Gui {
         frame.setLayout(null);
         frame.setVisible(true);
 
-        // Pre-select first track.
-        if (!infoSelectorList.isEmpty()) {
-            list.select(0);
-            showProgramInfo(infoSelectorList.get(0));
-        }
+        Thread waveformThread = new Thread(() -> {
+            WaveformPyramid pyramid = WaveformPyramid.build(sampleWindows);
+            EventQueue.invokeLater(() -> mWaveformCanvas.setPyramid(pyramid));
+        }, "waveform");
+        waveformThread.setDaemon(true);
+        waveformThread.start();
+
+        // Pre-select the whole tape.
+        mList.select(0);
+        showProgramInfo(mInfoSelectorList.get(0));
+    }
+
+    /**
+     * Add the program to the list and the tape. Can be called from any thread.
+     */
+    void addProgram(Program program) {
+        EventQueue.invokeLater(() -> {
+            addInfoSelector(new InfoSelector(program, InfoType.METADATA));
+            addInfoSelector(new InfoSelector(program, InfoType.BINARY));
+            if (program.isProgram()) {
+                addInfoSelector(new InfoSelector(program, InfoType.BASIC));
+            }
+            for (int i = 0; i < program.getBadSections().size(); i++) {
+                addInfoSelector(new InfoSelector(program, InfoType.BAD_SECTION, i));
+            }
+            mWaveformCanvas.addProgram(program);
+        });
+    }
+
+    /**
+     * Show that decoding and writing the output files are done. Can be called from any thread.
+     */
+    void finish(Results results) {
+        EventQueue.invokeLater(() -> {
+            // Bad sections after the last program.
+            mWaveformCanvas.addBadSections(results.getBadSections());
+            int programCount = results.getPrograms().size();
+            stopProgress(String.format("%s %d program%s", mProgressCanvas.isCanceled() ? "Canceled after" : "Found",
+                    programCount, programCount == 1 ? "" : "s"));
+        });
+    }
+
+    /**
+     * Show that decoding failed. Can be called from any thread.
+     */
+    void fail(String message) {
+        EventQueue.invokeLater(() -> stopProgress("Error: " + message));
+    }
+
+    private void stopProgress(String status) {
+        mProgressTimer.cancel();
+        mProgressCanvas.setStatus(status);
+        mCancelButton.setEnabled(false);
+    }
+
+    /**
+     * Add an entry to the end of the list chooser.
+     */
+    private void addInfoSelector(InfoSelector infoSelector) {
+        mInfoSelectorList.add(infoSelector);
+        mList.add(infoSelector.getMenuString());
     }
 
     /**
      * Update the right-hand pane with info about the selected object.
      */
     private void showProgramInfo(InfoSelector infoSelector) {
+        mSelected = infoSelector;
         switch (infoSelector.getInfoType()) {
             case METADATA:
                 mTextArea.setText(getMetadataString(infoSelector.getProgram()));
+                mTextArea.setCaretPosition(0);
                 break;
 
             case BINARY:
-                mTextArea.setText(getBinaryString(infoSelector.getProgram()));
+                mHexDumpView.setBinary(infoSelector.getProgram().getBinary());
                 break;
 
             case BASIC:
-                mTextArea.setText(getBasicString(infoSelector.getProgram()));
+                showBasicListing(infoSelector);
                 break;
 
             case BAD_SECTION:
-                BitHistory bitHistory = infoSelector.getBadSection();
-                mBitHistoryOriginalCanvas.setBitHistory(bitHistory);
-                mBitHistoryFilteredCanvas.setBitHistory(bitHistory);
+                BitSection badSection = infoSelector.getBadSection();
+                mBitSectionOriginalCanvas.setBitSection(badSection);
+                mBitSectionFilteredCanvas.setBitSection(badSection);
                 break;
         }
 
         switch (infoSelector.getInfoType()) {
+            case TAPE:
+                mTextArea.setVisible(false);
+                mHexDumpView.setVisible(false);
+                mBitSectionOriginalCanvas.setVisible(false);
+                mBitSectionFilteredCanvas.setVisible(false);
+                mWaveformCanvas.setVisible(true);
+                break;
+
             case METADATA:
-            case BINARY:
             case BASIC:
-                mTextArea.setCaretPosition(0);
                 mTextArea.setVisible(true);
-                mBitHistoryOriginalCanvas.setVisible(false);
-                mBitHistoryFilteredCanvas.setVisible(false);
+                mHexDumpView.setVisible(false);
+                mBitSectionOriginalCanvas.setVisible(false);
+                mBitSectionFilteredCanvas.setVisible(false);
+                mWaveformCanvas.setVisible(false);
+                break;
+
+            case BINARY:
+                mTextArea.setVisible(false);
+                mHexDumpView.setVisible(true);
+                mBitSectionOriginalCanvas.setVisible(false);
+                mBitSectionFilteredCanvas.setVisible(false);
+                mWaveformCanvas.setVisible(false);
                 break;
 
             case BAD_SECTION:
                 mTextArea.setVisible(false);
-                mBitHistoryOriginalCanvas.setVisible(true);
-                mBitHistoryFilteredCanvas.setVisible(true);
+                mHexDumpView.setVisible(false);
+                mBitSectionOriginalCanvas.setVisible(true);
+                mBitSectionFilteredCanvas.setVisible(true);
+                mWaveformCanvas.setVisible(false);
                 break;
         }
     }
 
+    /**
+     * Show the program's Basic listing. It's made on the listing thread the first time, and
+     * shown if the entry is still selected when it's done.
+     */
+    private void showBasicListing(InfoSelector infoSelector) {
+        Program program = infoSelector.getProgram();
+        String listing = mListings.getIfPresent(program);
+        if (listing != null) {
+            mTextArea.setText(listing);
+            mTextArea.setCaretPosition(0);
+            return;
+        }
+
+        mTextArea.setText("Listing program...");
+        mListingExecutor.submit(() -> {
+            String newListing = getBasicString(program);
+            mListings.put(program, newListing);
+            EventQueue.invokeLater(() -> {
+                if (mSelected == infoSelector) {
+                    mTextArea.setText(newListing);
+                    mTextArea.setCaretPosition(0);
+                }
+            });
+        });
+    }
+
     /**
      * The metadata for this program.
      */
@@ -218,76 +396,207 @@ class Gui {
     }
 
     /**
-     * Text (hex and ASCII) version of the binary.
+     * Decode the Basic program.
      */
-    private String getBinaryString(Program program) {
-        StringBuilder sb = new StringBuilder();
+    private static String getBasicString(Program program) {
+        if (!program.isProgram()) {
+            throw new IllegalStateException();
+        }
 
-        byte[] binary = program.getBinary();
-        for (int addr = 0; addr < binary.length; addr += 16) {
-            sb.append(String.format("%04X   ", addr));
+        String basicProgram = Basic.fromTokenized(program.getBinary());
+        return basicProgram == null ? "Cannot parse Basic program." : basicProgram;
+    }
 
-            // Hex.
-            int subAddr;
-            for (subAddr = addr; subAddr < binary.length && subAddr < addr + 16; subAddr++) {
-                sb.append(String.format("%02X ", binary[subAddr]));
-            }
-            for (; subAddr < addr + 16; subAddr++) {
-                sb.append("   ");
-            }
+    /**
+     * Text (hex and ASCII) version of the 16 bytes of the binary starting at "addr".
+     */
+    static String getBinaryRow(byte[] binary, int addr) {
+        StringBuilder sb = new StringBuilder(80);
+        sb.append(String.format("%04X   ", addr));
+
+        // Hex.
+        int subAddr;
+        for (subAddr = addr; subAddr < binary.length && subAddr < addr + 16; subAddr++) {
+            sb.append(HEX_DIGITS[(binary[subAddr] >> 4) & 0x0F]);
+            sb.append(HEX_DIGITS[binary[subAddr] & 0x0F]);
+            sb.append(' ');
+        }
+        for (; subAddr < addr + 16; subAddr++) {
+            sb.append("   ");
+        }
 
-            sb.append("  ");
+        sb.append("  ");
 
-            // ASCII.
-            for (subAddr = addr; subAddr < binary.length && subAddr < addr + 16; subAddr++) {
-                char c = (char) binary[subAddr];
-                sb.append(c >= 20 && c < 256 ? c : '.');
-            }
-            for (; subAddr < addr + 16; subAddr++) {
-                sb.append(' ');
-            }
-            sb.append('\n');
+        // ASCII.
+        for (subAddr = addr; subAddr < binary.length && subAddr < addr + 16; subAddr++) {
+            char c = (char) binary[subAddr];
+            sb.append(c >= 20 && c < 256 ? c : '.');
+        }
+        for (; subAddr < addr + 16; subAddr++) {
+            sb.append(' ');
         }
 
         return sb.toString();
     }
 
     /**
-     * Decode the Basic program.
+     * Canvas for drawing a section of bits.
      */
-    private String getBasicString(Program program) {
-        if (!program.isProgram()) {
-            throw new IllegalStateException();
+    private static class BitSectionCanvas extends Canvas {
+        private final SampleWindows mSampleWindows;
+        private final boolean mFiltered;
+        private BitSection mBitSection;
+
+        public BitSectionCanvas(SampleWindows sampleWindows, boolean filtered) {
+            mSampleWindows = sampleWindows;
+            mFiltered = filtered;
+            mBitSection = null;
+        }
+
+        public void setBitSection(BitSection bitSection) {
+            mBitSection = bitSection;
+            repaint();
+        }
+
+        @Override
+        public void paint(Graphics g) {
+            super.paint(g);
+            Graphics2D g2d = (Graphics2D) g;
+
+            if (mBitSection != null) {
+                mBitSection.draw(mSampleWindows, mFiltered, 0, getWidth(), getHeight(), g2d);
+            }
         }
+    }
 
-        return Basic.fromTokenized(program.getBinary());
+    /**
+     * Hex and ASCII dump of a binary, with a scrollbar. Only the rows in view are formatted,
+     * so even the longest binaries are shown at once.
+     */
+    private static class HexDumpView extends Panel {
+        private static final int BYTES_PER_ROW = 16;
+        private static final int MARGIN = 4;
+        private final Canvas mCanvas;
+        private final Scrollbar mScrollbar = new Scrollbar(Scrollbar.VERTICAL);
+        private byte[] mBinary = new byte[0];
+
+        public HexDumpView(Font font) {
+            mCanvas = new Canvas() {
+                @Override
+                public void paint(Graphics g) {
+                    paintRows(g);
+                }
+            };
+            mCanvas.setFont(font);
+            mCanvas.setBackground(Color.WHITE);
+            mCanvas.addComponentListener(new ComponentAdapter() {
+                @Override
+                public void componentResized(ComponentEvent e) {
+                    updateScrollbar();
+                }
+            });
+            mCanvas.addMouseWheelListener(e -> {
+                mScrollbar.setValue(mScrollbar.getValue() + e.getUnitsToScroll());
+                mCanvas.repaint();
+            });
+            mScrollbar.addAdjustmentListener(e -> mCanvas.repaint());
+
+            setLayout(new BorderLayout());
+            add(mCanvas, BorderLayout.CENTER);
+            add(mScrollbar, BorderLayout.EAST);
+        }
+
+        public void setBinary(byte[] binary) {
+            mBinary = binary;
+            mScrollbar.setValue(0);
+            updateScrollbar();
+            mCanvas.repaint();
+        }
+
+        private int getRowCount() {
+            return (mBinary.length + BYTES_PER_ROW - 1)/BYTES_PER_ROW;
+        }
+
+        /**
+         * Number of rows that fit in the canvas.
+         */
+        private int getVisibleRowCount() {
+            int rowHeight = mCanvas.getFontMetrics(mCanvas.getFont()).getHeight();
+            return Math.max((mCanvas.getHeight() - 2*MARGIN)/rowHeight, 1);
+        }
+
+        private void updateScrollbar() {
+            int visibleRowCount = getVisibleRowCount();
+            mScrollbar.setValues(mScrollbar.getValue(), visibleRowCount, 0,
+                    Math.max(getRowCount(), visibleRowCount));
+            mScrollbar.setBlockIncrement(visibleRowCount);
+        }
+
+        private void paintRows(Graphics g) {
+            FontMetrics fontMetrics = g.getFontMetrics(mCanvas.getFont());
+            g.setFont(mCanvas.getFont());
+            g.setColor(Color.BLACK);
+            int rowCount = getRowCount();
+            int y = MARGIN + fontMetrics.getAscent();
+            for (int row = mScrollbar.getValue(); row < rowCount && y < mCanvas.getHeight(); row++) {
+                g.drawString(getBinaryRow(mBinary, row*BYTES_PER_ROW), MARGIN, y);
+                y += fontMetrics.getHeight();
+            }
+        }
     }
 
     /**
-     * Canvas for drawing a bit history.
+     * Canvas for drawing the progress of decoding, with its speed and the time left.
      */
-    private static class BitHistoryCanvas extends Canvas {
-        private short[] mSamples;
-        private BitHistory mBitHistory;
+    private static class ProgressCanvas extends Canvas {
+        private static final Color BAR_COLOR = new Color(20, 150, 20);
+        private final DecodeProgress mProgress;
+        /**
+         * Shown instead of the progress once decoding is done.
+         */
+        private String mStatus = null;
+
+        public ProgressCanvas(DecodeProgress progress) {
+            mProgress = progress;
+        }
 
-        public BitHistoryCanvas(short[] samples) {
-            mSamples = samples;
-            mBitHistory = null;
+        public boolean isCanceled() {
+            return mProgress.isCanceled();
         }
 
-        public void setBitHistory(BitHistory bitHistory) {
-            mBitHistory = bitHistory;
+        public void setStatus(String status) {
+            mStatus = status;
             repaint();
         }
 
         @Override
         public void paint(Graphics g) {
-            super.paint(g);
-            Graphics2D g2d = (Graphics2D) g;
-
-            if (mBitHistory != null) {
-                mBitHistory.draw(mSamples, 0, getWidth(), getHeight(), g2d);
+            int width = getWidth();
+            int barHeight = getHeight()/2;
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, width, getHeight());
+            double fraction = mProgress.getFraction();
+            g.setColor(BAR_COLOR);
+            g.fillRect(0, 0, (int) (width*fraction), barHeight);
+            g.setColor(Color.BLACK);
+            g.drawRect(0, 0, width - 1, barHeight - 1);
+            g.drawString(String.format("%.0f%%", fraction*100), 4, barHeight - 5);
+
+            String text;
+            if (mStatus != null) {
+                text = mStatus;
+            } else if (mProgress.isCanceled()) {
+                text = "Canceling";
+            } else if (fraction == 1) {
+                text = "Writing output files";
+            } else {
+                // Speed compared to playing the tape.
+                double speed = mProgress.getFramesPerSecond()/AudioUtils.HZ;
+                long seconds = Math.round(mProgress.getRemainingSeconds());
+                text = seconds < 0 ? "Starting"
+                        : String.format("%.0fx real time, %d:%02d left", speed, seconds/60, seconds%60);
             }
+            g.drawString(text, 4, getHeight() - 5);
         }
     }
-}
\ No newline at end of file
+}
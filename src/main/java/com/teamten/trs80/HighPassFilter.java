@@ -0,0 +1,60 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+/**
+ * Simple high-pass filter that can be run over a stream of samples a chunk at a time.
+ * It subtracts out the average of the last "size" samples (to estimate local DC component),
+ * so it only needs to remember that many input samples.
+ */
+class HighPassFilter implements SampleFilter {
+    private final int mSize;
+    /**
+     * Ring buffer of the last "size" input samples.
+     */
+    private final short[] mHistory;
+    private int mHistoryIndex = 0;
+    private long mSampleCount = 0;
+    private long mSum = 0;
+
+    HighPassFilter(int size) {
+        mSize = size;
+        mHistory = new short[size];
+    }
+
+    @Override
+    public void filter(short[] samples, int offset, int count) {
+        int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            short sample = samples[i];
+            mSum += sample;
+            if (mSampleCount >= mSize) {
+                mSum -= mHistory[mHistoryIndex];
+            }
+            mHistory[mHistoryIndex] = sample;
+            mHistoryIndex += 1;
+            if (mHistoryIndex == mSize) {
+                mHistoryIndex = 0;
+            }
+            mSampleCount += 1;
+
+            long value = sample - mSum/mSize;
+            // A high-pass filter can generate values outside the short range. Clamp it.
+            samples[i] = (short) Math.min(Math.max(value, Short.MIN_VALUE), Short.MAX_VALUE);
+        }
+    }
+}
@@ -18,6 +18,8 @@ package com.teamten.trs80;
 
 import com.google.common.primitives.Shorts;
 
+import java.io.IOException;
+import java.nio.ShortBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -54,44 +56,108 @@ public class HighSpeedTapeEncoder {
      */
     private static final short[] FINAL_HALF_CYCLE = generateFinalHalfCycle(ZERO_LENGTH*3, ZERO);
 
+    /**
+     * Half a second of silence, written at the start and end.
+     */
+    private static final short[] SILENCE = new short[AudioUtils.HZ/2];
+    /**
+     * Samples for the whole header: 256 bytes of 0x55 and the 0x7F that ends it.
+     */
+    private static final short[] HEADER = generateHeader();
+    /**
+     * Samples for each byte value, most significant bit first, without the start bit.
+     */
+    private static final short[][] BYTES = generateBytes();
+
     /**
      * Encode the sequence of bytes as an array of audio samples.
      */
     public static short[] encode(byte[] bytes) {
-        List<short[]> samplesList = new ArrayList<>();
+        short[] samples = new short[getEncodedLength(bytes)];
+        ShortBuffer buffer = ShortBuffer.wrap(samples);
+        try {
+            encode(bytes, buffer::put);
+        } catch (IOException e) {
+            // Can't happen when writing to an array.
+            throw new IllegalStateException(e);
+        }
+        return samples;
+    }
 
+    /**
+     * Encode the sequence of bytes as audio samples, writing them to the sink as they're generated.
+     */
+    static void encode(byte[] bytes, SampleSink sink) throws IOException {
         // Start with half a second of silence.
-        samplesList.add(new short[AudioUtils.HZ/2]);
+        sink.write(SILENCE, 0, SILENCE.length);
 
-        // Header of 0x55.
-        for (int i = 0; i < 256; i++) {
-            addByte(samplesList, 0x55);
-        }
-        addByte(samplesList, 0x7F);
+        sink.write(HEADER, 0, HEADER.length);
 
         // Write program.
         boolean firstStartBit = true;
         for (byte b : bytes) {
             // Start bit.
             if (firstStartBit) {
-                samplesList.add(LONG_ZERO);
+                sink.write(LONG_ZERO, 0, LONG_ZERO.length);
                 firstStartBit = false;
             } else {
-                samplesList.add(ZERO);
+                sink.write(ZERO, 0, ZERO.length);
             }
-            addByte(samplesList, b);
+            short[] byteSamples = BYTES[b & 0xFF];
+            sink.write(byteSamples, 0, byteSamples.length);
         }
 
         // Finish off the last cycle, so that it generates an interrupt.
-        samplesList.add(FINAL_HALF_CYCLE);
+        sink.write(FINAL_HALF_CYCLE, 0, FINAL_HALF_CYCLE.length);
 
         // End with half a second of silence.
-        samplesList.add(new short[AudioUtils.HZ/2]);
+        sink.write(SILENCE, 0, SILENCE.length);
+    }
+
+    /**
+     * Number of samples that {@link #encode(byte[])} will generate for these bytes.
+     */
+    static int getEncodedLength(byte[] bytes) {
+        int length = SILENCE.length + HEADER.length;
+        for (byte b : bytes) {
+            length += ZERO.length + BYTES[b & 0xFF].length;
+        }
+        if (bytes.length > 0) {
+            length += LONG_ZERO.length - ZERO.length;
+        }
+        return length + FINAL_HALF_CYCLE.length + SILENCE.length;
+    }
+
+    /**
+     * Generate the samples for the header.
+     */
+    private static short[] generateHeader() {
+        List<short[]> samplesList = new ArrayList<>();
+
+        // Header of 0x55.
+        for (int i = 0; i < 256; i++) {
+            addByte(samplesList, 0x55);
+        }
+        addByte(samplesList, 0x7F);
 
-        // Concatenate all samples.
         return Shorts.concat(samplesList.toArray(new short[0][]));
     }
 
+    /**
+     * Generate the samples for every byte value.
+     */
+    private static short[][] generateBytes() {
+        short[][] bytes = new short[256][];
+
+        for (int b = 0; b < 256; b++) {
+            List<short[]> samplesList = new ArrayList<>();
+            addByte(samplesList, b);
+            bytes[b] = Shorts.concat(samplesList.toArray(new short[0][]));
+        }
+
+        return bytes;
+    }
+
     /**
      * Adds the byte "b" to the samples list, most significant bit first.
      * @param samplesList list of samples we're adding to.
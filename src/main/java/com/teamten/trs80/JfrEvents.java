@@ -0,0 +1,129 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events, to line up profiles with positions on the tape in JDK
+ * Mission Control. Record with -XX:StartFlightRecording. When nothing is recording,
+ * the events are never committed and the JIT removes them.
+ */
+class JfrEvents {
+    private static final String CATEGORY = "TRS-80 Cassette";
+
+    @Name("com.teamten.trs80.DecoderState")
+    @Label("Decoder State")
+    @Description("A decoder detected its encoding, finished a program, or found an error")
+    @Category(CATEGORY)
+    static class DecoderStateEvent extends Event {
+        @Label("Decoder")
+        String decoder;
+
+        @Label("Speed")
+        @Description("Speed of the decoder's encoding, in baud")
+        int speed;
+
+        @Label("State")
+        String state;
+
+        @Label("Frame")
+        int frame;
+    }
+
+    @Name("com.teamten.trs80.BadBit")
+    @Label("Bad Bit")
+    @Description("A bit of the wrong value, or a high-speed start bit that wasn't zero")
+    @Category(CATEGORY)
+    static class BadBitEvent extends Event {
+        @Label("Decoder")
+        String decoder;
+
+        @Label("Frame")
+        int frame;
+
+        @Label("Cycle Size")
+        @Description("Frames since the previous pulse or zero crossing")
+        int cycleSize;
+    }
+
+    @Name("com.teamten.trs80.Stage")
+    @Label("Stage")
+    @Description("Filtering and decoding the tape, or writing output files, with the frames they come from")
+    @Category(CATEGORY)
+    static class StageEvent extends Event {
+        @Label("Stage")
+        String stage;
+
+        @Label("File")
+        String file;
+
+        @Label("Start Frame")
+        int startFrame;
+
+        @Label("End Frame")
+        int endFrame;
+
+        StageEvent(String stage, String file, int startFrame, int endFrame) {
+            this.stage = stage;
+            this.file = file;
+            this.startFrame = startFrame;
+            this.endFrame = endFrame;
+        }
+    }
+
+    /**
+     * Record that the decoder, which reads tapes at the speed in baud, changed its state at the frame.
+     */
+    static void decoderState(String decoderName, int speed, TapeDecoderState state, int frame) {
+        DecoderStateEvent event = new DecoderStateEvent();
+        if (event.isEnabled()) {
+            event.decoder = decoderName;
+            event.speed = speed;
+            event.state = state.name();
+            event.frame = frame;
+            event.commit();
+        }
+    }
+
+    /**
+     * Record a bad bit at the frame.
+     */
+    static void badBit(String decoderName, int frame, int cycleSize) {
+        BadBitEvent event = new BadBitEvent();
+        if (event.isEnabled()) {
+            event.decoder = decoderName;
+            event.frame = frame;
+            event.cycleSize = cycleSize;
+            event.commit();
+        }
+    }
+
+    /**
+     * Start timing a stage that works on a file, or on the frames of the tape. Call
+     * {@link Event#commit()} on the returned event at the end of the stage.
+     */
+    static StageEvent beginStage(String stage, String file, int startFrame, int endFrame) {
+        StageEvent event = new StageEvent(stage, file, startFrame, endFrame);
+        event.begin();
+        return event;
+    }
+}
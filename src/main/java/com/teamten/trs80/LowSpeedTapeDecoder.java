@@ -22,10 +22,14 @@ import java.io.ByteArrayOutputStream;
  * Decodes low-speed (500 baud) cassettes.
  */
 public class LowSpeedTapeDecoder implements TapeDecoder {
+    /**
+     * Speed of the encoding, in bits per second.
+     */
+    static final int BAUD = 500;
     /**
      * Number of samples between the top of the pulse and the bottom of it.
      */
-    private static final int PULSE_PEAK_DISTANCE = 7;
+    static final int PULSE_PEAK_DISTANCE = 7;
     /**
      * Number of samples between start of pulse detection and end of pulse. Once
      * we detect a pulse, we ignore this number of samples.
@@ -52,6 +56,7 @@ public class LowSpeedTapeDecoder implements TapeDecoder {
     private int mLastPulseFrame = 0;
     private boolean mEatNextPulse = false;
     private int mBitCount = 0;
+    private int mProgramBitCount = 0;
     private int mRecentBits = 0;
     private boolean mLenientFirstBit = false;
     private int mDetectedZeros = 0;
@@ -70,68 +75,79 @@ public class LowSpeedTapeDecoder implements TapeDecoder {
     }
 
     @Override
-    public void handleSample(Results results, short[] samples, int frame) {
-        // Differentiate to accentuate a pulse. Pulse go positive, then negative,
-        // with a space of PULSE_PEAK_DISTANCE, so subtracting those generates a large
-        // positive value at the bottom of the pulse.
-        int pulse = frame >= PULSE_PEAK_DISTANCE ? samples[frame - PULSE_PEAK_DISTANCE] - samples[frame] : 0;
+    public int handleSamples(Results results, SignalBlock block, int startFrame, int endFrame) {
+        // Differentiated samples, large at the bottom of each pulse.
+        int[] pulses = block.getPulses();
+        int blockStartFrame = block.getStartFrame();
+        TapeDecoderState startState = mState;
 
-        int timeDiff = frame - mLastPulseFrame;
-        boolean pulsing = timeDiff > PULSE_WIDTH && pulse >= mPulseHeight/3;
+        for (int frame = startFrame; frame < endFrame; frame++) {
+            int pulse = pulses[frame - blockStartFrame];
 
-        // Keep track of the height of this pulse, to calibrate for the next one.
-        if (timeDiff < PULSE_WIDTH) {
-            mPulseHeight = Math.max(mPulseHeight, pulse);
-        }
+            int timeDiff = frame - mLastPulseFrame;
+            boolean pulsing = timeDiff > PULSE_WIDTH && pulse >= mPulseHeight/3;
 
-        if (mState == TapeDecoderState.DETECTED && timeDiff > END_OF_PROGRAM_SILENCE) {
-            // End of program.
-            mState = TapeDecoderState.FINISHED;
-        } else if (pulsing) {
-            boolean bit = timeDiff < BIT_DETERMINATOR;
-            if (mEatNextPulse) {
-                if (mState == TapeDecoderState.DETECTED && !bit && !mLenientFirstBit) {
-                    results.mLog.println("Warning: At bit of wrong value at " +
-                            AudioUtils.frameToTimestamp(frame) + ", diff = " + timeDiff + ", last = " +
-                            AudioUtils.frameToTimestamp(mLastPulseFrame));
-                    mHistory.add(new BitData(mLastPulseFrame, frame, BitType.BAD));
-                    results.addBadSection(mHistory);
-                }
-                mEatNextPulse = false;
-                mLenientFirstBit = false;
-            } else {
-                // If we see a 1 in the header, reset the count. We want a bunch of consecutive zeros.
-                if (bit && mState == TapeDecoderState.UNDECIDED && mDetectedZeros < MIN_HEADER_ZEROS) {
-                    // Still not in header. Reset count.
-                    mDetectedZeros = 0;
+            // Keep track of the height of this pulse, to calibrate for the next one.
+            if (timeDiff < PULSE_WIDTH) {
+                mPulseHeight = Math.max(mPulseHeight, pulse);
+            }
+
+            if (mState == TapeDecoderState.DETECTED && timeDiff > END_OF_PROGRAM_SILENCE) {
+                // End of program.
+                mState = TapeDecoderState.FINISHED;
+            } else if (pulsing) {
+                boolean bit = timeDiff < BIT_DETERMINATOR;
+                if (mEatNextPulse) {
+                    if (mState == TapeDecoderState.DETECTED && !bit && !mLenientFirstBit) {
+                        results.mLog.badBit(frame, timeDiff, mLastPulseFrame);
+                        JfrEvents.badBit(getName(), frame, timeDiff);
+                        mHistory.add(mLastPulseFrame, frame, BitType.BAD);
+                        results.addBadSection(mHistory);
+                    }
+                    mEatNextPulse = false;
+                    mLenientFirstBit = false;
                 } else {
-                    if (bit) {
-                        mEatNextPulse = true;
+                    // If we see a 1 in the header, reset the count. We want a bunch of consecutive zeros.
+                    if (bit && mState == TapeDecoderState.UNDECIDED && mDetectedZeros < MIN_HEADER_ZEROS) {
+                        // Still not in header. Reset count.
+                        mDetectedZeros = 0;
                     } else {
-                        mDetectedZeros += 1;
-                    }
-                    mRecentBits = (mRecentBits << 1) | (bit ? 1 : 0);
-                    mHistory.add(new BitData(mLastPulseFrame, frame, bit ? BitType.ONE : BitType.ZERO));
-                    if (mState == TapeDecoderState.UNDECIDED) {
-                        // Haven't found end of header yet. Look for it, preceded by zeros.
-                        if (mRecentBits == 0x000000A5) {
-                            mBitCount = 0;
-                            // For some reason we don't get a clock after this last 1.
-                            mLenientFirstBit = true;
-                            mState = TapeDecoderState.DETECTED;
+                        if (bit) {
+                            mEatNextPulse = true;
+                        } else {
+                            mDetectedZeros += 1;
                         }
-                    } else {
-                        mBitCount += 1;
-                        if (mBitCount == 8) {
-                            mProgramBytes.write(mRecentBits & 0xFF);
-                            mBitCount = 0;
+                        mRecentBits = (mRecentBits << 1) | (bit ? 1 : 0);
+                        mHistory.add(mLastPulseFrame, frame, bit ? BitType.ONE : BitType.ZERO);
+                        if (mState == TapeDecoderState.UNDECIDED) {
+                            // Haven't found end of header yet. Look for it, preceded by zeros.
+                            if (mRecentBits == 0x000000A5) {
+                                mBitCount = 0;
+                                // For some reason we don't get a clock after this last 1.
+                                mLenientFirstBit = true;
+                                mState = TapeDecoderState.DETECTED;
+                            }
+                        } else {
+                            mBitCount += 1;
+                            mProgramBitCount += 1;
+                            if (mBitCount == 8) {
+                                mProgramBytes.write(mRecentBits & 0xFF);
+                                mBitCount = 0;
+                            }
                         }
                     }
                 }
+                mLastPulseFrame = frame;
+                mPulseHeight = 0;
+            }
+
+            if (mState != startState) {
+                JfrEvents.decoderState(getName(), BAUD, mState, frame);
+                return frame + 1;
             }
-            mLastPulseFrame = frame;
-            mPulseHeight = 0;
         }
+
+        return endFrame;
     }
 
     @Override
@@ -139,6 +155,16 @@ public class LowSpeedTapeDecoder implements TapeDecoder {
         return mState;
     }
 
+    @Override
+    public int getBitCount() {
+        return mProgramBitCount;
+    }
+
+    @Override
+    public void setTimeline(BitTimeline timeline) {
+        mHistory.setTimeline(timeline);
+    }
+
     @Override
     public byte[] getProgram() {
         return mProgramBytes.toByteArray();
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+import java.io.IOException;
+
+/**
+ * Encodes low-speed (500 baud) cassettes.
+ */
+public class LowSpeedTapeEncoder {
+    /**
+     * Length of a bit, in samples (2 ms). Bit positions are kept as fractions so that the
+     * timing doesn't drift over a long program.
+     */
+    private static final double BIT_LENGTH = AudioUtils.HZ*0.002;
+    /**
+     * Number of zero bytes in the header.
+     */
+    private static final int HEADER_ZERO_BYTES = 256;
+    /**
+     * Byte that ends the header.
+     */
+    private static final int HEADER_END = 0xA5;
+    /**
+     * Samples representing one pulse: a cycle of about 14 samples, top to bottom in
+     * about 7 samples, followed by a small bump above zero.
+     */
+    private static final short[] PULSE = generatePulse(14, 4);
+    /**
+     * Samples of silence, written in pieces as needed.
+     */
+    private static final short[] SILENCE = new short[AudioUtils.HZ/10];
+
+    /**
+     * Encode the sequence of bytes as an array of audio samples.
+     */
+    public static short[] encode(byte[] bytes) {
+        ShortArraySink sink = new ShortArraySink();
+        try {
+            encode(bytes, sink);
+        } catch (IOException e) {
+            // Can't happen with an in-memory sink.
+            throw new IllegalStateException(e);
+        }
+        return sink.toArray();
+    }
+
+    /**
+     * Encode the sequence of bytes as audio samples, writing them to the sink as they're generated.
+     */
+    static void encode(byte[] bytes, SampleSink sink) throws IOException {
+        PulseWriter pulseWriter = new PulseWriter(sink);
+
+        // Start with half a second of silence.
+        double time = AudioUtils.HZ/2;
+
+        // Header of zeros, then the end-of-header byte.
+        for (int i = 0; i < HEADER_ZERO_BYTES; i++) {
+            time = addByte(pulseWriter, time, 0x00);
+        }
+        time = addByte(pulseWriter, time, HEADER_END);
+
+        // The ROM pauses for 1 ms after the header, so the first clock pulse of the program is late.
+        time += BIT_LENGTH/2;
+
+        // Write program.
+        for (byte b : bytes) {
+            time = addByte(pulseWriter, time, b);
+        }
+
+        // The last bit ends with the next clock pulse.
+        pulseWriter.pulseAt(time);
+
+        // End with half a second of silence, well past the 100 ms that marks the end of the program.
+        pulseWriter.silenceUntil(time + AudioUtils.HZ/2);
+    }
+
+    /**
+     * Adds the byte "b" starting at "time", most significant bit first.
+     *
+     * @return the time of the start of the next bit.
+     */
+    private static double addByte(PulseWriter pulseWriter, double time, int b) throws IOException {
+        for (int i = 7; i >= 0; i--) {
+            // Every bit starts with a clock pulse. A one has an extra pulse half-way through.
+            pulseWriter.pulseAt(time);
+            if ((b & (1 << i)) != 0) {
+                pulseWriter.pulseAt(time + BIT_LENGTH/2);
+            }
+            time += BIT_LENGTH;
+        }
+
+        return time;
+    }
+
+    /**
+     * Writes pulses and the silence between them to a sink.
+     */
+    private static class PulseWriter {
+        private final SampleSink mSink;
+        /**
+         * Number of samples written so far.
+         */
+        private long mFrame = 0;
+
+        PulseWriter(SampleSink sink) {
+            mSink = sink;
+        }
+
+        /**
+         * Write a pulse that starts at "time", after silence since the last pulse.
+         */
+        void pulseAt(double time) throws IOException {
+            silenceUntil(time);
+            mSink.write(PULSE, 0, PULSE.length);
+            mFrame += PULSE.length;
+        }
+
+        /**
+         * Write silence until "time".
+         */
+        void silenceUntil(double time) throws IOException {
+            long frame = Math.round(time);
+            while (mFrame < frame) {
+                int count = (int) Math.min(SILENCE.length, frame - mFrame);
+                mSink.write(SILENCE, 0, count);
+                mFrame += count;
+            }
+        }
+    }
+
+    /**
+     * Generate one pulse, modeled on recorded ones.
+     *
+     * @param cycleLength number of samples in the main sine cycle.
+     * @param bumpLength number of samples in the small bump after it.
+     */
+    private static short[] generatePulse(int cycleLength, int bumpLength) {
+        short[] audio = new short[cycleLength + bumpLength];
+
+        for (int i = 0; i < cycleLength; i++) {
+            double t = 2*Math.PI*i/cycleLength;
+            // -0.5 to 0.5, matches recorded audio.
+            audio[i] = (short) (Math.sin(t)*16384);
+        }
+        for (int i = 0; i < bumpLength; i++) {
+            double t = Math.PI*(i + 1)/(bumpLength + 1);
+            audio[cycleLength + i] = (short) (Math.sin(t)*16384*0.1);
+        }
+
+        return audio;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the independent jobs that write output files on a bounded pool of threads. Each
+ * job logs to its own event log, and these are appended to the log of the results in
+ * the order that the jobs were submitted, so the log doesn't depend on scheduling. Several
+ * stages (one per tape) can share a pool.
+ */
+class OutputStage {
+    private final ExecutorService mExecutor;
+    private final List<Future<JobResult>> mFutures = new ArrayList<>();
+
+    /**
+     * Writes one output file.
+     */
+    interface Job {
+        void run(EventLog log) throws IOException;
+    }
+
+    /**
+     * What a job logged, and its error if it failed.
+     */
+    private static class JobResult {
+        private final EventLog mLog;
+        private final String mError;
+
+        JobResult(EventLog log, String error) {
+            mLog = log;
+            mError = error;
+        }
+    }
+
+    OutputStage(ExecutorService executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Create a pool suitable for output jobs.
+     */
+    static ExecutorService createExecutor(int threadCount) {
+        // When the queue is full the submitting thread runs the job itself, so we never
+        // get far ahead of the threads with work (and the memory it holds on to).
+        return new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threadCount*2),
+                new ThreadFactoryBuilder().setNameFormat("output-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Queue a job that writes the specified file, which comes from the frames of the tape from
+     * startFrame (inclusive) to endFrame (exclusive).
+     */
+    void submit(File file, int startFrame, int endFrame, Job job) {
+        mFutures.add(mExecutor.submit(() -> runJob(file, startFrame, endFrame, job)));
+    }
+
+    /**
+     * Wait for all jobs of this stage, then add their logs and errors to the results in
+     * submission order.
+     */
+    void finish(Results results) {
+        for (Future<JobResult> future : mFutures) {
+            JobResult jobResult = Futures.getUnchecked(future);
+            results.mLog.addAll(jobResult.mLog);
+            if (jobResult.mError != null) {
+                results.mLog.error("Error writing " + jobResult.mError);
+                results.addOutputError(jobResult.mError);
+            }
+        }
+        mFutures.clear();
+    }
+
+    private static JobResult runJob(File file, int startFrame, int endFrame, Job job) {
+        EventLog log = new EventLog();
+        String error = null;
+        JfrEvents.StageEvent stageEvent = JfrEvents.beginStage("write", file.getPath(), startFrame, endFrame);
+        try {
+            job.run(log);
+        } catch (IOException | RuntimeException e) {
+            error = file + ": " + e;
+        }
+        stageEvent.commit();
+        return new JobResult(log, error);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Decodes a tape on all cores. The tape is split in the middle of long silences, each segment
+ * is decoded with its own {@link TapeReader}, and the instances are then given to the
+ * consumer in tape order as if the tape had been read in one pass. The decoders and filters
+ * start over at each split, so this is only the same as one pass when the reader also starts
+ * over after skipping each silence.
+ */
+class ParallelTapeReader {
+    /**
+     * Minimum length of silence, in seconds, that we split a tape at. This must be
+     * well over the silence that ends a program, so that no program is split.
+     */
+    private static final double MIN_SPLIT_SILENCE = 1.0;
+
+    /**
+     * Decode the whole tape and give the instances to the consumer, in tape order.
+     *
+     * @param blockIndex index of the samples, for finding silences.
+     * @param tapeReaderFactory makes a new reader, for each segment, that gives its instances
+     * to the specified consumer. The readers must skip the silences in the block index.
+     * @param metrics if not null, gets the time spent filtering and decoding the segments.
+     * @param progress if not null, the progress given to the readers by the factory.
+     */
+    static void read(ShortBuffer samples, BlockIndex blockIndex,
+                     Function<Consumer<TapeReader.Instance>, TapeReader> tapeReaderFactory,
+                     Consumer<TapeReader.Instance> consumer, DecodeMetrics metrics, DecodeProgress progress) {
+
+        int sampleCount = samples.limit();
+        List<Integer> splitFrames = findSplitFrames(blockIndex);
+
+        // Segment boundaries, including both ends of the tape.
+        List<Integer> boundaries = new ArrayList<>();
+        boundaries.add(0);
+        boundaries.addAll(splitFrames);
+        boundaries.add(sampleCount);
+
+        // Decode each segment independently. Their times are kept apart until we know
+        // that the segments are used.
+        DecodeMetrics segmentMetrics = new DecodeMetrics();
+        List<List<TapeReader.Instance>> segmentInstances = IntStream.range(0, boundaries.size() - 1)
+                .parallel()
+                .mapToObj(segment -> {
+                    List<TapeReader.Instance> instances = new ArrayList<>();
+                    TapeReader tapeReader = tapeReaderFactory.apply(instances::add);
+                    tapeReader.setMetrics(segmentMetrics);
+                    tapeReader.read(samples, boundaries.get(segment), boundaries.get(segment + 1));
+                    return instances;
+                })
+                .collect(Collectors.toList());
+
+        // Stitch the segments together. The last instance of a segment was cut off by the split,
+        // so it continues in the first instance of the next segment.
+        List<TapeReader.Instance> allInstances = new ArrayList<>();
+        for (List<TapeReader.Instance> instances : segmentInstances) {
+            if (!allInstances.isEmpty() && !instances.isEmpty()) {
+                TapeReader.Instance lastInstance = allInstances.get(allInstances.size() - 1);
+                if (lastInstance.isOpen()) {
+                    if (lastInstance.mState != TapeDecoderState.UNDECIDED) {
+                        // A program straddles the split. Shouldn't happen in a silence, but
+                        // if it does, fall back to reading the whole tape in one pass. Start
+                        // the progress over so that the segments aren't counted twice.
+                        if (progress != null) {
+                            progress.start(sampleCount);
+                        }
+                        tapeReaderFactory.apply(consumer).read(samples, 0, sampleCount);
+                        return;
+                    }
+                    allInstances.remove(allInstances.size() - 1);
+                    instances.get(0).mSearchStartFrame = lastInstance.mSearchStartFrame;
+                }
+            }
+            allInstances.addAll(instances);
+        }
+
+        if (metrics != null) {
+            metrics.addStageTimes(segmentMetrics);
+        }
+        allInstances.forEach(consumer);
+    }
+
+    /**
+     * Find the frames in the middle of long silences where the tape can be split.
+     */
+    static List<Integer> findSplitFrames(BlockIndex blockIndex) {
+        int blockCount = blockIndex.getBlockCount();
+
+        // Split in the middle of each long enough run of quiet blocks.
+        int minQuietBlocks = (int) (MIN_SPLIT_SILENCE*AudioUtils.HZ/BlockIndex.BLOCK_SIZE);
+        List<Integer> splitFrames = new ArrayList<>();
+        int block = 0;
+        while (block < blockCount) {
+            if (blockIndex.isQuiet(block)) {
+                int runStart = block;
+                while (block < blockCount && blockIndex.isQuiet(block)) {
+                    block++;
+                }
+                // Don't split at the very start or end of the tape.
+                if (block - runStart >= minQuietBlocks && runStart > 0 && block < blockCount) {
+                    splitFrames.add(blockIndex.getBlockStartFrame((runStart + block)/2));
+                }
+            } else {
+                block++;
+            }
+        }
+
+        return splitFrames;
+    }
+}
@@ -27,7 +27,12 @@ class Program {
     private final int mCopy;
     private final int mStartFrame;
     private byte[] mBinary;
-    private final List<BitHistory> mBadSections = new ArrayList<>();
+    private final List<BitSection> mBadSections = new ArrayList<>();
+    private BitTimeline mTimeline;
+    private String mDecoderName;
+    private int mBitCount;
+    private int mSearchStartFrame;
+    private int mEndFrame;
 
     public Program(int track, int copy, int startFrame) {
         mTrack = track;
@@ -55,14 +60,66 @@ class Program {
         mBinary = binary;
     }
 
-    public void addBadSections(List<BitHistory> badSections) {
+    public void addBadSections(List<BitSection> badSections) {
         mBadSections.addAll(badSections);
     }
 
-    public List<BitHistory> getBadSections() {
+    public List<BitSection> getBadSections() {
         return mBadSections;
     }
 
+    /**
+     * Every bit of the program, or null if it wasn't recorded.
+     */
+    public BitTimeline getTimeline() {
+        return mTimeline;
+    }
+
+    public void setTimeline(BitTimeline timeline) {
+        mTimeline = timeline;
+    }
+
+    /**
+     * The frame where the search for this program started. Decoding from here finds it again.
+     */
+    public int getSearchStartFrame() {
+        return mSearchStartFrame;
+    }
+
+    public void setSearchStartFrame(int searchStartFrame) {
+        mSearchStartFrame = searchStartFrame;
+    }
+
+    /**
+     * The frame just past the end of the program, where the decoder stopped.
+     */
+    public int getEndFrame() {
+        return mEndFrame;
+    }
+
+    public void setEndFrame(int endFrame) {
+        mEndFrame = endFrame;
+    }
+
+    /**
+     * Name of the decoder that read the program.
+     */
+    public String getDecoderName() {
+        return mDecoderName;
+    }
+
+    /**
+     * Number of bits the decoder read, including start bits.
+     */
+    public int getBitCount() {
+        return mBitCount;
+    }
+
+    public void setDecoder(String decoderName, int bitCount) {
+        mDecoderName = decoderName;
+        mBitCount = bitCount;
+    }
+
     /**
      * Whether the binary represents a Basic program.
      */
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+import java.util.function.Consumer;
+
+/**
+ * Takes the instances found by {@link TapeReader}, in tape order, numbers their tracks and
+ * copies, and adds them to the results.
+ */
+class ProgramCollector implements Consumer<TapeReader.Instance> {
+    /**
+     * A program found after searching for longer than this, in seconds, starts a new track.
+     */
+    static final double NEW_TRACK_SECONDS = 10;
+    private final Results mResults;
+    private int mInstanceNumber = 1;
+    private int mTrackNumber = 0;
+    private int mCopyNumber = 1;
+    private int mProgramStartFrame = -1;
+    /**
+     * Whether the track and copy numbers were set for the next program.
+     */
+    private boolean mNextNumberSet = false;
+    private Consumer<Program> mProgramListener = null;
+
+    ProgramCollector(Results results) {
+        mResults = results;
+    }
+
+    /**
+     * Number the next program found as this track and copy, when reading part of a tape
+     * whose earlier programs are known. Later programs are numbered from there.
+     */
+    void setNextNumber(int track, int copy) {
+        mTrackNumber = track;
+        mCopyNumber = copy;
+        mNextNumberSet = true;
+    }
+
+    /**
+     * If not null, gets each program as it's found, on the thread that found it,
+     * with its bad sections.
+     */
+    void setProgramListener(Consumer<Program> programListener) {
+        mProgramListener = programListener;
+    }
+
+    @Override
+    public void accept(TapeReader.Instance instance) {
+        mResults.mLog.instance(mInstanceNumber);
+
+        if (instance.mState != TapeDecoderState.UNDECIDED) {
+            int frame = instance.mDetectedFrame;
+
+            // See how long it took to find it. A large gap means a new track.
+            double leadTime = (double) (frame - instance.mSearchStartFrame)/AudioUtils.HZ;
+            if (mNextNumberSet) {
+                mNextNumberSet = false;
+            } else if (leadTime > NEW_TRACK_SECONDS || mProgramStartFrame == -1) {
+                mTrackNumber += 1;
+                mCopyNumber = 1;
+            }
+
+            mProgramStartFrame = frame;
+            mResults.mLog.detection(instance.mDecoderName, mTrackNumber, mCopyNumber, frame, leadTime);
+        }
+
+        // Whatever the decoder had to say.
+        mResults.mLog.addAll(instance.mResults.mLog);
+        mResults.addBadSections(instance.mResults.getBadSections());
+
+        Program program;
+        switch (instance.mState) {
+            case UNDECIDED:
+                mResults.mLog.message("Reached end of tape without finding track.");
+                break;
+
+            case DETECTED:
+                mResults.mLog.message("Reached end of tape while still reading track.");
+                break;
+
+            case ERROR:
+                mResults.mLog.error("Decoder detected an error; skipping program.");
+                program = new Program(mTrackNumber, mCopyNumber, mProgramStartFrame);
+                program.setBinary(instance.mBinary);
+                program.setTimeline(instance.mTimeline);
+                program.setDecoder(instance.mDecoderName, instance.mBitCount);
+                program.setSearchStartFrame(instance.mSearchStartFrame);
+                program.setEndFrame(instance.mEndFrame);
+                addProgram(program);
+                break;
+
+            case FINISHED:
+                mResults.mLog.endOfProgram(instance.mEndFrame);
+                program = new Program(mTrackNumber, mCopyNumber, mProgramStartFrame);
+                program.setBinary(instance.mBinary);
+                program.setTimeline(instance.mTimeline);
+                program.setDecoder(instance.mDecoderName, instance.mBitCount);
+                program.setSearchStartFrame(instance.mSearchStartFrame);
+                program.setEndFrame(instance.mEndFrame);
+                addProgram(program);
+                break;
+        }
+
+        mCopyNumber += 1;
+        mInstanceNumber += 1;
+    }
+
+    private void addProgram(Program program) {
+        mResults.addProgram(program);
+        mResults.getMetrics().addProgram(program);
+        if (mProgramListener != null) {
+            mProgramListener.accept(program);
+        }
+    }
+}
@@ -16,8 +16,6 @@
 
 package com.teamten.trs80;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -26,16 +24,12 @@ import java.util.List;
  */
 class Results {
     private final List<Program> mPrograms = new ArrayList<>();
-    private final List<BitHistory> mBadSections = new ArrayList<>();
-    private final StringWriter mLogWriter;
-    final PrintWriter mLog;
-    private short[] mOriginalSamples;
-    private short[] mFilteredSamples;
-
-    Results() {
-        mLogWriter = new StringWriter();
-        mLog = new PrintWriter(mLogWriter);
-    }
+    private final List<BitSection> mBadSections = new ArrayList<>();
+    private final List<String> mOutputErrors = new ArrayList<>();
+    final EventLog mLog = new EventLog();
+    private final DecodeMetrics mMetrics = new DecodeMetrics();
+    private SampleWindows mSampleWindows;
+    private int mQuietPeakToPeak;
 
     void addProgram(Program program) {
         // Transfer the bad sections to this program.
@@ -50,33 +44,61 @@ class Results {
     }
 
     void addBadSection(BitHistory bitHistory) {
-        mBadSections.add(new BitHistory(bitHistory));
+        mBadSections.add(bitHistory.snapshot());
+    }
+
+    /**
+     * Add bad sections that have already been copied.
+     */
+    void addBadSections(List<BitSection> badSections) {
+        mBadSections.addAll(badSections);
     }
 
-    public List<BitHistory> getBadSections() {
+    public List<BitSection> getBadSections() {
         return mBadSections;
     }
 
-    public short[] getOriginalSamples() {
-        return mOriginalSamples;
+    /**
+     * Record that an output file could not be written.
+     */
+    void addOutputError(String error) {
+        mOutputErrors.add(error);
+    }
+
+    public List<String> getOutputErrors() {
+        return mOutputErrors;
     }
 
-    public void setOriginalSamples(short[] originalSamples) {
-        mOriginalSamples = originalSamples;
+    DecodeMetrics getMetrics() {
+        return mMetrics;
     }
 
-    public short[] getFilteredSamples() {
-        return mFilteredSamples;
+    /**
+     * Peak-to-peak amplitude below which a block of the tape is quiet, or 0 if unknown.
+     */
+    int getQuietPeakToPeak() {
+        return mQuietPeakToPeak;
+    }
+
+    void setQuietPeakToPeak(int quietPeakToPeak) {
+        mQuietPeakToPeak = quietPeakToPeak;
+    }
+
+    /**
+     * Samples of the tape, for drawing bad sections.
+     */
+    public SampleWindows getSampleWindows() {
+        return mSampleWindows;
     }
 
-    public void setFilteredSamples(short[] filteredSamples) {
-        mFilteredSamples = filteredSamples;
+    public void setSampleWindows(SampleWindows sampleWindows) {
+        mSampleWindows = sampleWindows;
     }
 
     /**
-     * Get all log lines so far.
+     * Get all log lines so far, as text.
      */
     String getLog() {
-        return mLogWriter.toString();
+        return mLog.render(EventLog.Format.TEXT, 0);
     }
 }
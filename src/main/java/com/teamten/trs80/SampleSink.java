@@ -0,0 +1,31 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+import java.io.IOException;
+
+/**
+ * Receives generated audio a run of samples at a time, so that long recordings
+ * don't have to be held in memory.
+ */
+interface SampleSink {
+    /**
+     * Take "count" samples from the array, starting at "offset". The sink must not
+     * keep a reference to the array.
+     */
+    void write(short[] samples, int offset, int count) throws IOException;
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads short windows of the tape, as recorded or as filtered for the decoders, when they're
+ * drawn. This way no copy of the whole tape is kept after decoding. The samples are normally
+ * a view on the mapped input file, so reading them again is cheap.
+ */
+class SampleWindows {
+    /**
+     * Number of samples filtered before a window so that the filters settle to the state they
+     * were in while decoding. This is ten times the release time of the gain normalizer.
+     */
+    private static final int WARM_UP = AudioUtils.HZ/2;
+    private final ShortBuffer mSamples;
+    private final boolean mNormalizeGain;
+
+    /**
+     * @param samples all samples of the tape.
+     * @param normalizeGain whether the gain was normalized while decoding.
+     */
+    SampleWindows(ShortBuffer samples, boolean normalizeGain) {
+        mSamples = samples;
+        mNormalizeGain = normalizeGain;
+    }
+
+    /**
+     * Number of frames in the tape.
+     */
+    int getFrameCount() {
+        return mSamples.limit();
+    }
+
+    /**
+     * The samples from fromFrame (inclusive) to toFrame (exclusive), as recorded.
+     */
+    short[] getOriginal(int fromFrame, int toFrame) {
+        short[] window = new short[toFrame - fromFrame];
+
+        // Use our own view, since the buffer may be shared between threads.
+        ShortBuffer view = mSamples.duplicate();
+        view.position(fromFrame);
+        view.get(window);
+        return window;
+    }
+
+    /**
+     * The samples from fromFrame (inclusive) to toFrame (exclusive), as filtered for the decoders.
+     */
+    short[] getFiltered(int fromFrame, int toFrame) {
+        int warmUpFrame = Math.max(0, fromFrame - WARM_UP);
+        short[] samples = getOriginal(warmUpFrame, toFrame);
+        SignalChain.create(mNormalizeGain).filter(samples, 0, samples.length);
+        return Arrays.copyOfRange(samples, fromFrame - warmUpFrame, samples.length);
+    }
+}
@@ -16,36 +16,35 @@
 
 package com.teamten.trs80;
 
+import java.util.Arrays;
+
 /**
- * Information about one particular bit (its position and status).
+ * Sink that collects all samples into an array.
  */
-class BitData {
-    public final int mStartFrame;
-    public final int mEndFrame;
-    public final BitType mBitType;
-
-    /**
-     * Create an object representing a bit.
-     *
-     * @param startFrame the first frame, inclusive.
-     * @param endFrame the last frame, inclusive.
-     * @param bitType what kind of bit it is.
-     */
-    public BitData(int startFrame, int endFrame, BitType bitType) {
-        mStartFrame = startFrame;
-        mEndFrame = endFrame;
-        mBitType = bitType;
-    }
+class ShortArraySink implements SampleSink {
+    private short[] mSamples = new short[1024];
+    private int mSize = 0;
 
-    public int getStartFrame() {
-        return mStartFrame;
+    @Override
+    public void write(short[] samples, int offset, int count) {
+        if (mSize + count > mSamples.length) {
+            mSamples = Arrays.copyOf(mSamples, Math.max(mSamples.length*2, mSize + count));
+        }
+        System.arraycopy(samples, offset, mSamples, mSize, count);
+        mSize += count;
     }
 
-    public int getEndFrame() {
-        return mEndFrame;
+    /**
+     * Number of samples written so far.
+     */
+    int size() {
+        return mSize;
     }
 
-    public BitType getBitType() {
-        return mBitType;
+    /**
+     * A copy of all samples written so far.
+     */
+    short[] toArray() {
+        return Arrays.copyOf(mSamples, mSize);
     }
 }
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+/**
+ * A fixed-size block of conditioned samples that's reused as we stream through the tape,
+ * along with the signals derived from them that the decoders look at. It also keeps the last
+ * few samples of the previous block, since the derived signals look back a short distance.
+ */
+class SignalBlock {
+    /**
+     * Number of samples before the start of the block that are kept.
+     */
+    static final int HISTORY = 16;
+    private final short[] mSamples;
+    /**
+     * Differentiated samples for the low-speed decoder, one per frame of the block.
+     */
+    private final int[] mPulses;
+    /**
+     * Samples quantized to -1, 0, or 1 for the high-speed decoder, one per frame of the block.
+     */
+    private final byte[] mSigns;
+    private int mStartFrame = 0;
+    private int mLength = 0;
+
+    SignalBlock(int capacity) {
+        mSamples = new short[HISTORY + capacity];
+        mPulses = new int[capacity];
+        mSigns = new byte[capacity];
+    }
+
+    /**
+     * Move the block to the next "length" frames of the tape, keeping the end of the previous
+     * block as history. The caller must then fill in the samples and call {@link #derive()}.
+     */
+    void start(int startFrame, int length) {
+        if (length > mPulses.length) {
+            throw new IllegalArgumentException("Block length " + length + " is too large");
+        }
+
+        System.arraycopy(mSamples, mLength, mSamples, 0, HISTORY);
+        mStartFrame = startFrame;
+        mLength = length;
+    }
+
+    /**
+     * Compute the decoders' signals from the conditioned samples.
+     */
+    void derive() {
+        int distance = LowSpeedTapeDecoder.PULSE_PEAK_DISTANCE;
+        int threshold = HighSpeedTapeDecoder.THRESHOLD;
+
+        for (int i = 0; i < mLength; i++) {
+            short sample = mSamples[HISTORY + i];
+
+            // Differentiate to accentuate a pulse. Pulse go positive, then negative,
+            // with a space of PULSE_PEAK_DISTANCE, so subtracting those generates a large
+            // positive value at the bottom of the pulse.
+            mPulses[i] = mStartFrame + i >= distance ? mSamples[HISTORY + i - distance] - sample : 0;
+
+            mSigns[i] = (byte) (sample > threshold ? 1
+                    : sample < -threshold ? -1
+                    : 0);
+        }
+    }
+
+    /**
+     * The array of conditioned samples, starting HISTORY frames before the start of the block.
+     * Frames before the start of the tape are zero.
+     */
+    short[] getSamples() {
+        return mSamples;
+    }
+
+    /**
+     * The differentiated samples. Index 0 is the start of the block.
+     */
+    int[] getPulses() {
+        return mPulses;
+    }
+
+    /**
+     * The quantized samples. Index 0 is the start of the block.
+     */
+    byte[] getSigns() {
+        return mSigns;
+    }
+
+    /**
+     * The first frame of the block.
+     */
+    int getStartFrame() {
+        return mStartFrame;
+    }
+
+    /**
+     * The frame just past the end of the block.
+     */
+    int getEndFrame() {
+        return mStartFrame + mLength;
+    }
+}
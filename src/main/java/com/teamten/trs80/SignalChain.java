@@ -0,0 +1,76 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Conditions the raw samples of the tape for the decoders. Each block is read from the tape
+ * once and run through all the filters while it's in cache, and then the signals the decoders
+ * actually look at are derived from it in a single loop.
+ */
+class SignalChain {
+    private final List<SampleFilter> mFilters = new ArrayList<>();
+
+    /**
+     * Create the standard chain: DC removal, then optionally gain normalization.
+     */
+    static SignalChain create(boolean normalizeGain) {
+        SignalChain signalChain = new SignalChain();
+        signalChain.addFilter(new HighPassFilter(TapeReader.HIGH_PASS_FILTER_SIZE));
+        if (normalizeGain) {
+            signalChain.addFilter(new GainNormalizer());
+        }
+        return signalChain;
+    }
+
+    /**
+     * Add a filter to the end of the chain.
+     */
+    SignalChain addFilter(SampleFilter filter) {
+        mFilters.add(filter);
+        return this;
+    }
+
+    /**
+     * Replace the contents of the block with the next "length" samples of the tape, conditioned.
+     * Successive calls must pass successive runs of samples.
+     */
+    void fill(SignalBlock block, ShortBuffer samples, int startFrame, int length) {
+        block.start(startFrame, length);
+
+        // Use our own view for the bulk read, since the caller's buffer may be shared between threads.
+        ShortBuffer view = samples.duplicate();
+        view.position(startFrame);
+        short[] blockSamples = block.getSamples();
+        view.get(blockSamples, SignalBlock.HISTORY, length);
+        filter(blockSamples, SignalBlock.HISTORY, length);
+        block.derive();
+    }
+
+    /**
+     * Run the filters over "count" samples in place, starting at "offset", without deriving
+     * the decoders' signals. Successive calls must pass successive runs of samples.
+     */
+    void filter(short[] samples, int offset, int count) {
+        for (SampleFilter filter : mFilters) {
+            filter.filter(samples, offset, count);
+        }
+    }
+}
@@ -23,15 +23,35 @@ public interface TapeDecoder {
     String getName();
 
     /**
-     * Handle the sample at "frame".
+     * Handle the samples from startFrame (inclusive) to endFrame (exclusive), which are all
+     * in the block. Returns early if the state changes.
+     *
+     * @return the frame just past the last one handled.
      */
-    void handleSample(Results results, short[] samples, int frame);
+    int handleSamples(Results results, SignalBlock block, int startFrame, int endFrame);
+
+    /**
+     * Handle the sample at "frame", which is in the block.
+     */
+    default void handleSample(Results results, SignalBlock block, int frame) {
+        handleSamples(results, block, frame, frame + 1);
+    }
 
     /**
      * Get the state of the decoder. See the enum for valid state transitions.
      */
     TapeDecoderState getState();
 
+    /**
+     * Get the number of bits decoded since the encoding was detected, including start bits.
+     */
+    int getBitCount();
+
+    /**
+     * Record every bit decoded from now on into the timeline.
+     */
+    void setTimeline(BitTimeline timeline);
+
     /**
      * Get the bytes of the decoded program. Only called if the state is FINISHED.
      */
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Sink that makes clean generated audio sound like a worn cassette before passing it
+ * on: speed variation (wow and flutter), slow fading of the level, DC drift, and noise.
+ * Everything is off by default, in which case samples pass through unchanged.
+ */
+class TapeDegrader implements SampleSink {
+    /**
+     * Frequency of the slow speed variation, in Hz.
+     */
+    private static final double WOW_HZ = 0.5;
+    /**
+     * Frequency of the fast speed variation, in Hz.
+     */
+    private static final double FLUTTER_HZ = 8;
+    /**
+     * Period of the level fading, in seconds.
+     */
+    private static final double FADE_PERIOD = 11;
+    /**
+     * Period of the DC drift, in seconds.
+     */
+    private static final double DC_DRIFT_PERIOD = 23;
+    private static final int OUTPUT_SIZE = 4096;
+    private final SampleSink mSink;
+    private final Random mRandom;
+    private final double mWowPhase;
+    private final double mFlutterPhase;
+    private final double mFadePhase;
+    private final double mDcDriftPhase;
+    private double mNoise = 0;
+    private double mDcDrift = 0;
+    private double mFade = 0;
+    private double mWow = 0;
+    private double mFlutter = 0;
+    /**
+     * Input samples not yet fully consumed by the resampler.
+     */
+    private short[] mPending = new short[OUTPUT_SIZE];
+    private int mPendingSize = 0;
+    /**
+     * Position of the next output sample in mPending.
+     */
+    private double mPosition = 0;
+    private final short[] mOutput = new short[OUTPUT_SIZE];
+    private long mOutputFrame = 0;
+
+    TapeDegrader(SampleSink sink, Random random) {
+        mSink = sink;
+        mRandom = random;
+        mWowPhase = random.nextDouble()*2*Math.PI;
+        mFlutterPhase = random.nextDouble()*2*Math.PI;
+        mFadePhase = random.nextDouble()*2*Math.PI;
+        mDcDriftPhase = random.nextDouble()*2*Math.PI;
+    }
+
+    /**
+     * Standard deviation of the added noise, in sample units.
+     */
+    void setNoise(double noise) {
+        mNoise = noise;
+    }
+
+    /**
+     * Peak DC offset, in sample units.
+     */
+    void setDcDrift(double dcDrift) {
+        mDcDrift = dcDrift;
+    }
+
+    /**
+     * Depth of the level fading, from 0 (none) to 1 (fades to silence).
+     */
+    void setFade(double fade) {
+        mFade = fade;
+    }
+
+    /**
+     * Peak speed deviation of the slow variation, as a fraction (0.003 is 0.3%).
+     */
+    void setWow(double wow) {
+        mWow = wow;
+    }
+
+    /**
+     * Peak speed deviation of the fast variation, as a fraction.
+     */
+    void setFlutter(double flutter) {
+        mFlutter = flutter;
+    }
+
+    /**
+     * Number of samples passed on to the sink so far.
+     */
+    long getOutputFrame() {
+        return mOutputFrame;
+    }
+
+    @Override
+    public void write(short[] samples, int offset, int count) throws IOException {
+        if (mPendingSize + count > mPending.length) {
+            mPending = Arrays.copyOf(mPending, Math.max(mPending.length*2, mPendingSize + count));
+        }
+        System.arraycopy(samples, offset, mPending, mPendingSize, count);
+        mPendingSize += count;
+
+        int outputSize = 0;
+        while (mPosition + 1 < mPendingSize) {
+            double time = (double) mOutputFrame/AudioUtils.HZ;
+
+            // Linear interpolation between the two nearest input samples.
+            int index = (int) mPosition;
+            double fraction = mPosition - index;
+            double value = mPending[index]*(1 - fraction) + mPending[index + 1]*fraction;
+
+            value *= 1 - mFade*(0.5 - 0.5*Math.cos(2*Math.PI*time/FADE_PERIOD + mFadePhase));
+            if (mDcDrift != 0) {
+                value += mDcDrift*Math.sin(2*Math.PI*time/DC_DRIFT_PERIOD + mDcDriftPhase);
+            }
+            if (mNoise != 0) {
+                value += mRandom.nextGaussian()*mNoise;
+            }
+            mOutput[outputSize++] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+            mOutputFrame++;
+            if (outputSize == mOutput.length) {
+                mSink.write(mOutput, 0, outputSize);
+                outputSize = 0;
+            }
+
+            // Faster tape plays more of the recording per output sample.
+            mPosition += 1 + mWow*Math.sin(2*Math.PI*WOW_HZ*time + mWowPhase)
+                    + mFlutter*Math.sin(2*Math.PI*FLUTTER_HZ*time + mFlutterPhase);
+        }
+        mSink.write(mOutput, 0, outputSize);
+
+        // Drop input samples we'll never look at again.
+        int consumed = Math.min((int) mPosition, mPendingSize);
+        System.arraycopy(mPending, consumed, mPending, 0, mPendingSize - consumed);
+        mPendingSize -= consumed;
+        mPosition -= consumed;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+import com.google.common.io.Files;
+import picocli.CommandLine;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Main class for generating a long synthetic tape for load and accuracy testing. Tracks
+ * are recorded in several copies at low or high speed, separated by realistic gaps, and
+ * the audio is optionally degraded. The WAV file is written as it's generated, so tapes
+ * of several hours don't need much memory. The programs are also written out as the
+ * ground truth, named like the output of {@link CassetteReader}, along with a listing
+ * of where each one is on the tape.
+ */
+public class TapeGenerator implements Runnable {
+    /**
+     * Silence before the first track, in seconds.
+     */
+    private static final double LEADER_SECONDS = 2;
+    /**
+     * Range of the gap between copies of a track, in seconds. These must stay well under
+     * the ten seconds that {@link ProgramCollector} uses to start a new track, even with
+     * the long low-speed header.
+     */
+    private static final double MIN_COPY_GAP_SECONDS = 1.5;
+    private static final double MAX_COPY_GAP_SECONDS = 4;
+    /**
+     * Range of the gap between tracks, in seconds.
+     */
+    private static final double MIN_TRACK_GAP_SECONDS = 15;
+    private static final double MAX_TRACK_GAP_SECONDS = 30;
+    private static final short[] SILENCE = new short[AudioUtils.HZ/10];
+
+    @CommandLine.Parameters(index = "0", paramLabel = "OUTPUT_PATHNAME", description = "Output WAV file.")
+    private String mOutputPathname;
+
+    @CommandLine.Parameters(index = "1", paramLabel = "TRUTH_PREFIX", description = "Prefix for ground-truth files.")
+    private String mTruthPrefix;
+
+    @CommandLine.Option(names = { "--minutes" }, description = "Length of the tape (default ${DEFAULT-VALUE}).")
+    private double mMinutes = 60;
+
+    @CommandLine.Option(names = { "--copies" }, description = "Copies of each track (default ${DEFAULT-VALUE}).")
+    private int mCopies = 2;
+
+    @CommandLine.Option(names = { "--low-speed" }, description = "Fraction of tracks at low speed (default ${DEFAULT-VALUE}).")
+    private double mLowSpeedFraction = 0.5;
+
+    @CommandLine.Option(names = { "--program" }, paramLabel = "BIN_PATHNAME",
+            description = "Program to record, picked at random for each track. Can be repeated. "
+                    + "Random bytes are recorded if none are given.")
+    private List<String> mProgramPathnames = new ArrayList<>();
+
+    @CommandLine.Option(names = { "--min-bytes" }, description = "Minimum size of random programs (default ${DEFAULT-VALUE}).")
+    private int mMinBytes = 200;
+
+    @CommandLine.Option(names = { "--max-bytes" }, description = "Maximum size of random programs (default ${DEFAULT-VALUE}).")
+    private int mMaxBytes = 8000;
+
+    @CommandLine.Option(names = { "--noise" }, description = "Standard deviation of added noise (default ${DEFAULT-VALUE}).")
+    private double mNoise = 0;
+
+    @CommandLine.Option(names = { "--dc-drift" }, description = "Peak DC offset (default ${DEFAULT-VALUE}).")
+    private double mDcDrift = 0;
+
+    @CommandLine.Option(names = { "--fade" }, description = "Depth of level fading, 0 to 1 (default ${DEFAULT-VALUE}).")
+    private double mFade = 0;
+
+    @CommandLine.Option(names = { "--wow" }, description = "Peak slow speed deviation, e.g. 0.003 (default ${DEFAULT-VALUE}).")
+    private double mWow = 0;
+
+    @CommandLine.Option(names = { "--flutter" }, description = "Peak fast speed deviation, e.g. 0.001 (default ${DEFAULT-VALUE}).")
+    private double mFlutter = 0;
+
+    @CommandLine.Option(names = { "--seed" }, description = "Seed for the random generator (default ${DEFAULT-VALUE}).")
+    private long mSeed = 0;
+
+    public static void main(String[] args) {
+        // Parse command-line parameters.
+        CommandLine.run(new TapeGenerator(), args);
+    }
+
+    @Override
+    public void run() {
+        try {
+            generate();
+        } catch (IOException e) {
+            System.err.println("I/O exception: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Generate the tape and the ground-truth files.
+     */
+    private void generate() throws IOException {
+        Random random = new Random(mSeed);
+
+        List<byte[]> programs = new ArrayList<>();
+        for (String pathname : mProgramPathnames) {
+            programs.add(Files.toByteArray(new File(pathname)));
+        }
+
+        long tapeFrames = (long) (mMinutes*60*AudioUtils.HZ);
+        try (PrintWriter truth = new PrintWriter(mTruthPrefix + "truth.txt");
+             WavWriter wavWriter = new WavWriter(new File(mOutputPathname))) {
+
+            truth.println("# track copy speed start_frame end_frame bytes");
+            TapeDegrader degrader = new TapeDegrader(wavWriter, random);
+            degrader.setNoise(mNoise);
+            degrader.setDcDrift(mDcDrift);
+            degrader.setFade(mFade);
+            degrader.setWow(mWow);
+            degrader.setFlutter(mFlutter);
+
+            writeSilence(degrader, LEADER_SECONDS);
+            int track = 0;
+            while (degrader.getOutputFrame() < tapeFrames) {
+                track++;
+                if (track > 1) {
+                    writeSilence(degrader, randomBetween(random, MIN_TRACK_GAP_SECONDS, MAX_TRACK_GAP_SECONDS));
+                }
+
+                byte[] program;
+                if (programs.isEmpty()) {
+                    program = new byte[mMinBytes + random.nextInt(mMaxBytes - mMinBytes + 1)];
+                    random.nextBytes(program);
+                } else {
+                    program = programs.get(random.nextInt(programs.size()));
+                }
+                boolean lowSpeed = random.nextDouble() < mLowSpeedFraction;
+
+                for (int copy = 1; copy <= mCopies; copy++) {
+                    if (copy > 1) {
+                        writeSilence(degrader, randomBetween(random, MIN_COPY_GAP_SECONDS, MAX_COPY_GAP_SECONDS));
+                    }
+
+                    // Frames are those of the degraded tape, so only accurate to a sample or two with wow or flutter.
+                    long startFrame = degrader.getOutputFrame();
+                    if (lowSpeed) {
+                        LowSpeedTapeEncoder.encode(program, degrader);
+                    } else {
+                        HighSpeedTapeEncoder.encode(program, degrader);
+                    }
+                    long endFrame = degrader.getOutputFrame();
+
+                    // Same name as CassetteReader would give it.
+                    Program truthProgram = new Program(track, copy, (int) startFrame);
+                    truthProgram.setBinary(program);
+                    String suffix = truthProgram.isProgram() ? "" : "-binary";
+                    String basePathname = mTruthPrefix + track + "-" + copy + suffix;
+                    try (OutputStream fos = new FileOutputStream(basePathname + ".bin")) {
+                        fos.write(program);
+                    }
+                    truth.printf("%d %d %s %d %d %d%n", track, copy, lowSpeed ? "low" : "high",
+                            startFrame, endFrame, program.length);
+                }
+                System.out.printf("Track %d ends at %s%n", track, AudioUtils.frameToTimestamp((int) degrader.getOutputFrame()));
+            }
+
+            writeSilence(degrader, LEADER_SECONDS);
+        }
+    }
+
+    /**
+     * Write the specified number of seconds of silence to the sink.
+     */
+    private static void writeSilence(SampleSink sink, double seconds) throws IOException {
+        long frames = (long) (seconds*AudioUtils.HZ);
+        while (frames > 0) {
+            int count = (int) Math.min(SILENCE.length, frames);
+            sink.write(SILENCE, 0, count);
+            frames -= count;
+        }
+    }
+
+    private static double randomBetween(Random random, double min, double max) {
+        return min + random.nextDouble()*(max - min);
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Where each program is on a tape. It's written next to the outputs as tab-separated values,
+ * one line per program, so that a track can be decoded again without reading the whole tape.
+ * A comment line before the header has the quiet threshold of the whole tape, so that the
+ * part finds the same silences.
+ */
+class TapeIndex {
+    /**
+     * Name of the index file, after the output prefix.
+     */
+    static final String FILENAME = "index.tsv";
+    private static final String QUIET_PREFIX = "# quiet_peak_to_peak=";
+    private static final String HEADER = "track\tcopy\tdecoder\tsearch_frame\tstart_frame\tend_frame\tbytes\tbad_frames";
+    private final List<Entry> mEntries;
+    private final int mQuietPeakToPeak;
+
+    /**
+     * One program on the tape.
+     */
+    static class Entry {
+        private final int mTrack;
+        private final int mCopy;
+        private final String mDecoderName;
+        private final int mSearchFrame;
+        private final int mStartFrame;
+        private final int mEndFrame;
+        private final int mByteCount;
+        private final int[] mBadFrames;
+
+        Entry(int track, int copy, String decoderName, int searchFrame, int startFrame, int endFrame,
+              int byteCount, int[] badFrames) {
+
+            mTrack = track;
+            mCopy = copy;
+            mDecoderName = decoderName;
+            mSearchFrame = searchFrame;
+            mStartFrame = startFrame;
+            mEndFrame = endFrame;
+            mByteCount = byteCount;
+            mBadFrames = badFrames;
+        }
+
+        int getTrack() {
+            return mTrack;
+        }
+
+        int getCopy() {
+            return mCopy;
+        }
+
+        String getDecoderName() {
+            return mDecoderName;
+        }
+
+        /**
+         * Frame to start decoding at to find this program.
+         */
+        int getSearchFrame() {
+            return mSearchFrame;
+        }
+
+        /**
+         * Frame where the decoder detected the program.
+         */
+        int getStartFrame() {
+            return mStartFrame;
+        }
+
+        /**
+         * Frame where the decoder finished the program.
+         */
+        int getEndFrame() {
+            return mEndFrame;
+        }
+
+        int getByteCount() {
+            return mByteCount;
+        }
+
+        /**
+         * Frames of the bad bits.
+         */
+        int[] getBadFrames() {
+            return mBadFrames;
+        }
+    }
+
+    private TapeIndex(List<Entry> entries, int quietPeakToPeak) {
+        mEntries = entries;
+        mQuietPeakToPeak = quietPeakToPeak;
+    }
+
+    /**
+     * Index of the programs that were found.
+     */
+    static TapeIndex fromResults(Results results) {
+        List<Entry> entries = new ArrayList<>();
+        for (Program program : results.getPrograms()) {
+            List<BitSection> badSections = program.getBadSections();
+            int[] badFrames = new int[badSections.size()];
+            for (int i = 0; i < badFrames.length; i++) {
+                // The bad bit is the last of its section.
+                BitSection badSection = badSections.get(i);
+                badFrames[i] = badSection.getStartFrame(badSection.size() - 1);
+            }
+            entries.add(new Entry(program.getTrack(), program.getCopy(), program.getDecoderName(),
+                    program.getSearchStartFrame(), program.getStartFrame(), program.getEndFrame(),
+                    program.getBinary().length, badFrames));
+        }
+        return new TapeIndex(entries, results.getQuietPeakToPeak());
+    }
+
+    List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * Peak-to-peak amplitude below which a block of the tape is quiet, or 0 if unknown.
+     */
+    int getQuietPeakToPeak() {
+        return mQuietPeakToPeak;
+    }
+
+    /**
+     * All copies of the track, in tape order.
+     */
+    List<Entry> getTrack(int track) {
+        List<Entry> entries = new ArrayList<>();
+        for (Entry entry : mEntries) {
+            if (entry.getTrack() == track) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * The first program that ends after the frame, which is the one whose search or decoding
+     * the frame is in, if any, or else the next one. Null if there's none.
+     */
+    Entry findFirstEndingAfter(int frame) {
+        for (Entry entry : mEntries) {
+            if (entry.getEndFrame() > frame) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    void write(File file) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        if (mQuietPeakToPeak != 0) {
+            sb.append(QUIET_PREFIX).append(mQuietPeakToPeak).append('\n');
+        }
+        sb.append(HEADER).append('\n');
+        for (Entry entry : mEntries) {
+            sb.append(entry.getTrack())
+                    .append('\t').append(entry.getCopy())
+                    .append('\t').append(entry.getDecoderName())
+                    .append('\t').append(entry.getSearchFrame())
+                    .append('\t').append(entry.getStartFrame())
+                    .append('\t').append(entry.getEndFrame())
+                    .append('\t').append(entry.getByteCount())
+                    .append('\t');
+            int[] badFrames = entry.getBadFrames();
+            for (int i = 0; i < badFrames.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(badFrames[i]);
+            }
+            sb.append('\n');
+        }
+        Files.asCharSink(file, Charsets.UTF_8).write(sb);
+    }
+
+    static TapeIndex read(File file) throws IOException {
+        List<String> lines = Files.asCharSource(file, Charsets.UTF_8).readLines();
+        int quietPeakToPeak = 0;
+        int headerLine = 0;
+        if (!lines.isEmpty() && lines.get(0).startsWith(QUIET_PREFIX)) {
+            try {
+                quietPeakToPeak = Integer.parseInt(lines.get(0).substring(QUIET_PREFIX.length()));
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad quiet threshold in " + file, e);
+            }
+            headerLine = 1;
+        }
+        if (lines.size() <= headerLine || !lines.get(headerLine).equals(HEADER)) {
+            throw new IOException("Not a tape index: " + file);
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        for (int i = headerLine + 1; i < lines.size(); i++) {
+            String[] fields = lines.get(i).split("\t", -1);
+            if (fields.length != 8) {
+                throw new IOException("Wrong number of fields on line " + (i + 1) + " of " + file);
+            }
+            try {
+                int[] badFrames = fields[7].isEmpty() ? new int[0]
+                        : Arrays.stream(fields[7].split(",")).mapToInt(Integer::parseInt).toArray();
+                entries.add(new Entry(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]), fields[2],
+                        Integer.parseInt(fields[3]), Integer.parseInt(fields[4]), Integer.parseInt(fields[5]),
+                        Integer.parseInt(fields[6]), badFrames));
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad number on line " + (i + 1) + " of " + file, e);
+            }
+        }
+        return new TapeIndex(entries, quietPeakToPeak);
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+/**
+ * Quick map of the recordings on a tape, found by frequency analysis instead of decoding.
+ * Windows of samples are classified with Goertzel filters:
+ *
+ * <ul>
+ *     <li>Low-speed pulses are all on a 1 ms grid, so the rectified signal has strong
+ *     harmonics of 1 kHz. In the header there's only a pulse every 2 ms, so it also has
+ *     strong odd harmonics of 500 Hz.</li>
+ *     <li>High-speed bits are cycles at 1378 Hz (zero) and 2940 Hz (one). Their phase
+ *     restarts with every bit, so they're measured over short sub-windows. The header of
+ *     0x55 repeats every 47 samples, so it has strong harmonics of 938 Hz.</li>
+ * </ul>
+ *
+ * Only every few windows are classified, in parallel, and the edges of each recording
+ * are then refined. A {@link TapeReader} reading from a recording's seek frame to its
+ * stop frame will find the recording.
+ */
+class TapeMap {
+    /**
+     * Number of frames in each analyzed window.
+     */
+    private static final int WINDOW_SIZE = 1024;
+    /**
+     * Distance between the windows of the first pass.
+     */
+    private static final int STRIDE = 8*WINDOW_SIZE;
+    /**
+     * Number of frames in each high-speed sub-window.
+     */
+    private static final int SUB_WINDOW_SIZE = 64;
+    /**
+     * Number of unrecognized windows of the first pass allowed within a recording, for dropouts.
+     */
+    private static final int MAX_GAP_WINDOWS = 1;
+    /**
+     * Number of windows of the first pass at the start of a recording that must include its header.
+     */
+    private static final int HEADER_WINDOWS = 3;
+    /**
+     * How far before a recording to start decoding it.
+     */
+    private static final int SEEK_MARGIN = AudioUtils.HZ/2;
+    private static final double HIGH_SPEED_ZERO_HZ = AudioUtils.HZ/32.0;
+    private static final double HIGH_SPEED_ONE_HZ = AudioUtils.HZ/15.0;
+    private static final double HIGH_SPEED_HEADER_HZ = AudioUtils.HZ/47.0;
+    /**
+     * Length of a low-speed bit, in frames.
+     */
+    private static final double LOW_SPEED_BIT_LENGTH = AudioUtils.HZ*0.002;
+    private final List<Recording> mRecordings;
+
+    /**
+     * What a window was found to contain.
+     */
+    private enum WindowType {
+        NONE(null, false),
+        LOW_SPEED_HEADER(false, true),
+        LOW_SPEED(false, false),
+        HIGH_SPEED_HEADER(true, true),
+        HIGH_SPEED(true, false);
+
+        private final Boolean mHighSpeed;
+        private final boolean mHeader;
+
+        WindowType(Boolean highSpeed, boolean header) {
+            mHighSpeed = highSpeed;
+            mHeader = header;
+        }
+    }
+
+    /**
+     * Classification of one window.
+     */
+    private static class Window {
+        private final WindowType mType;
+        /**
+         * Number of full cycles, for estimating the number of high-speed bits.
+         */
+        private final int mCycleCount;
+
+        Window(WindowType type, int cycleCount) {
+            mType = type;
+            mCycleCount = cycleCount;
+        }
+    }
+
+    /**
+     * One recording found on the tape.
+     */
+    static class Recording {
+        private final boolean mHighSpeed;
+        private final int mStartFrame;
+        private final int mProgramFrame;
+        private final int mEndFrame;
+        private final int mEstimatedByteCount;
+
+        Recording(boolean highSpeed, int startFrame, int programFrame, int endFrame, int estimatedByteCount) {
+            mHighSpeed = highSpeed;
+            mStartFrame = startFrame;
+            mProgramFrame = programFrame;
+            mEndFrame = endFrame;
+            mEstimatedByteCount = estimatedByteCount;
+        }
+
+        boolean isHighSpeed() {
+            return mHighSpeed;
+        }
+
+        /**
+         * Approximate start of the header.
+         */
+        int getStartFrame() {
+            return mStartFrame;
+        }
+
+        /**
+         * Approximate end of the header and start of the program.
+         */
+        int getProgramFrame() {
+            return mProgramFrame;
+        }
+
+        /**
+         * Approximate end of the recording (exclusive).
+         */
+        int getEndFrame() {
+            return mEndFrame;
+        }
+
+        int getEstimatedByteCount() {
+            return mEstimatedByteCount;
+        }
+
+        /**
+         * Frame to start decoding at to find this recording.
+         */
+        int getSeekFrame() {
+            return Math.max(0, mStartFrame - SEEK_MARGIN);
+        }
+
+        /**
+         * Frame to stop decoding at, past the silence that ends the recording.
+         */
+        int getStopFrame(int frameCount) {
+            return Math.min(frameCount, mEndFrame + SEEK_MARGIN);
+        }
+    }
+
+    private TapeMap(List<Recording> recordings) {
+        mRecordings = recordings;
+    }
+
+    List<Recording> getRecordings() {
+        return mRecordings;
+    }
+
+    /**
+     * The recordings of the track, starting with 1, in tape order. Like {@link ProgramCollector},
+     * a gap of more than {@link ProgramCollector#NEW_TRACK_SECONDS} starts a new track. Copies with
+     * no gap between them may be found as one recording. Empty if there's no such track.
+     */
+    List<Recording> getTrack(int track) {
+        List<Recording> recordings = new ArrayList<>();
+        int recordingTrack = 0;
+        Recording previous = null;
+        for (Recording recording : mRecordings) {
+            if (previous == null || recording.getStartFrame() - previous.getEndFrame()
+                    > ProgramCollector.NEW_TRACK_SECONDS*AudioUtils.HZ) {
+
+                recordingTrack++;
+            }
+            if (recordingTrack == track) {
+                recordings.add(recording);
+            }
+            previous = recording;
+        }
+        return recordings;
+    }
+
+    /**
+     * Find the recordings on the tape.
+     */
+    static TapeMap scan(ShortBuffer samples) {
+        int frameCount = samples.limit();
+        int windowCount = frameCount < WINDOW_SIZE ? 0 : (frameCount - WINDOW_SIZE)/STRIDE + 1;
+        Window[] windows = IntStream.range(0, windowCount)
+                .parallel()
+                .mapToObj(i -> analyze(samples, i*STRIDE))
+                .toArray(Window[]::new);
+
+        List<Recording> recordings = new ArrayList<>();
+        int i = 0;
+        while (i < windowCount) {
+            Boolean highSpeed = windows[i].mType.mHighSpeed;
+            if (highSpeed == null) {
+                i++;
+                continue;
+            }
+
+            // Find the end of the run of windows of this speed, skipping over dropouts.
+            int runStart = i;
+            int runEnd = i + 1;
+            for (int j = runEnd; j < windowCount && j - runEnd <= MAX_GAP_WINDOWS; j++) {
+                Boolean windowHighSpeed = windows[j].mType.mHighSpeed;
+                if (highSpeed.equals(windowHighSpeed)) {
+                    runEnd = j + 1;
+                } else if (windowHighSpeed != null) {
+                    break;
+                }
+            }
+            i = runEnd;
+
+            // Must start with a header, followed by the program.
+            int headerWindow = -1;
+            for (int j = runStart; j < runEnd && j < runStart + HEADER_WINDOWS; j++) {
+                if (windows[j].mType.mHeader) {
+                    headerWindow = j;
+                    break;
+                }
+            }
+            if (headerWindow == -1) {
+                continue;
+            }
+            int programWindow = headerWindow;
+            while (programWindow < runEnd && windows[programWindow].mType.mHeader) {
+                programWindow++;
+            }
+
+            // Refine the edges between windows of the first pass.
+            Predicate<Window> isSameSpeed = window -> highSpeed.equals(window.mType.mHighSpeed);
+            int startFrame = findFirst(samples, (runStart - 1)*STRIDE + WINDOW_SIZE, runStart*STRIDE, isSameSpeed);
+            int endFrame = findLast(samples, (runEnd - 1)*STRIDE + WINDOW_SIZE,
+                    Math.min(runEnd*STRIDE, frameCount), isSameSpeed) + WINDOW_SIZE;
+            int programFrame = programWindow == runEnd ? endFrame
+                    : findFirst(samples, (programWindow - 1)*STRIDE + WINDOW_SIZE, programWindow*STRIDE,
+                    window -> !window.mType.mHeader);
+
+            recordings.add(new Recording(highSpeed, startFrame, programFrame, endFrame,
+                    estimateByteCount(highSpeed, windows, programWindow, runEnd, endFrame - programFrame)));
+        }
+
+        return new TapeMap(recordings);
+    }
+
+    /**
+     * Estimate the number of bytes in a program of the specified length.
+     */
+    private static int estimateByteCount(boolean highSpeed, Window[] windows, int startWindow, int endWindow,
+                                         int frameCount) {
+
+        if (!highSpeed) {
+            // All bits are the same length.
+            return (int) Math.round(frameCount/(8*LOW_SPEED_BIT_LENGTH));
+        }
+
+        // Each bit is a cycle. Use the rate of cycles in the windows we've analyzed.
+        long cycleCount = 0;
+        for (int i = startWindow; i < endWindow; i++) {
+            cycleCount += windows[i].mCycleCount;
+        }
+        int analyzedFrameCount = (endWindow - startWindow)*WINDOW_SIZE;
+        double cyclesPerFrame = analyzedFrameCount == 0 ? 0 : (double) cycleCount/analyzedFrameCount;
+
+        // Each byte has a start bit.
+        return (int) Math.round(frameCount*cyclesPerFrame/9);
+    }
+
+    /**
+     * The frame of the first window between the two frames (at WINDOW_SIZE steps) that
+     * matches the predicate, or the last frame if none does.
+     */
+    private static int findFirst(ShortBuffer samples, int beginFrame, int endFrame, Predicate<Window> predicate) {
+        for (int frame = Math.max(0, beginFrame); frame < endFrame; frame += WINDOW_SIZE) {
+            if (predicate.test(analyze(samples, frame))) {
+                return frame;
+            }
+        }
+        return endFrame;
+    }
+
+    /**
+     * The frame of the last window between the two frames (at WINDOW_SIZE steps, counting from the
+     * end) that matches the predicate, or the first frame if none does.
+     */
+    private static int findLast(ShortBuffer samples, int beginFrame, int endFrame, Predicate<Window> predicate) {
+        for (int frame = endFrame - WINDOW_SIZE; frame >= beginFrame; frame -= WINDOW_SIZE) {
+            if (predicate.test(analyze(samples, frame))) {
+                return frame;
+            }
+        }
+        return beginFrame - WINDOW_SIZE;
+    }
+
+    /**
+     * Classify the window starting at the frame.
+     */
+    private static Window analyze(ShortBuffer samples, int startFrame) {
+        int endFrame = startFrame + WINDOW_SIZE;
+
+        // Remove DC offset, and find the mean of the rectified signal so that we can remove it too.
+        double mean = 0;
+        for (int frame = startFrame; frame < endFrame; frame++) {
+            mean += samples.get(frame);
+        }
+        mean /= WINDOW_SIZE;
+        double rectifiedMean = 0;
+        for (int frame = startFrame; frame < endFrame; frame++) {
+            rectifiedMean += Math.abs(samples.get(frame) - mean);
+        }
+        rectifiedMean /= WINDOW_SIZE;
+
+        // Count cycles with some hysteresis, so that noise doesn't count.
+        double cycleThreshold = rectifiedMean/2;
+        int cycleCount = 0;
+        int sign = 0;
+
+        Goertzel[] lowSpeedGrid = new Goertzel[4];
+        for (int i = 0; i < lowSpeedGrid.length; i++) {
+            lowSpeedGrid[i] = new Goertzel(1000*(i + 1));
+        }
+        Goertzel[] lowSpeedHeader = new Goertzel[3];
+        for (int i = 0; i < lowSpeedHeader.length; i++) {
+            lowSpeedHeader[i] = new Goertzel(500*(i*2 + 1));
+        }
+        Goertzel[] highSpeedHeader = new Goertzel[4];
+        for (int i = 0; i < highSpeedHeader.length; i++) {
+            highSpeedHeader[i] = new Goertzel(HIGH_SPEED_HEADER_HZ*(i + 1));
+        }
+        Goertzel highSpeedZero = new Goertzel(HIGH_SPEED_ZERO_HZ);
+        Goertzel highSpeedOne = new Goertzel(HIGH_SPEED_ONE_HZ);
+
+        double energy = 0;
+        double rectifiedEnergy = 0;
+        double zeroPower = 0;
+        double onePower = 0;
+        for (int frame = startFrame; frame < endFrame; frame++) {
+            double sample = samples.get(frame) - mean;
+            double rectified = Math.abs(sample) - rectifiedMean;
+            energy += sample*sample;
+            rectifiedEnergy += rectified*rectified;
+            if (sample > cycleThreshold && sign != 1) {
+                if (sign == -1) {
+                    cycleCount++;
+                }
+                sign = 1;
+            } else if (sample < -cycleThreshold) {
+                sign = -1;
+            }
+
+            for (Goertzel goertzel : lowSpeedGrid) {
+                goertzel.add(rectified);
+            }
+            for (Goertzel goertzel : lowSpeedHeader) {
+                goertzel.add(rectified);
+            }
+            for (Goertzel goertzel : highSpeedHeader) {
+                goertzel.add(sample);
+            }
+            highSpeedZero.add(sample);
+            highSpeedOne.add(sample);
+            if ((frame - startFrame + 1) % SUB_WINDOW_SIZE == 0) {
+                zeroPower += highSpeedZero.getPower();
+                onePower += highSpeedOne.getPower();
+                highSpeedZero.reset();
+                highSpeedOne.reset();
+            }
+        }
+        if (energy == 0 || rectifiedEnergy == 0) {
+            return new Window(WindowType.NONE, 0);
+        }
+
+        // Fraction of the energy at these frequencies.
+        double lowSpeedGridScore = getScore(lowSpeedGrid, rectifiedEnergy, WINDOW_SIZE);
+        double lowSpeedHeaderScore = getScore(lowSpeedHeader, rectifiedEnergy, WINDOW_SIZE);
+        double highSpeedHeaderScore = getScore(highSpeedHeader, energy, WINDOW_SIZE);
+        double highSpeedScore = (zeroPower + onePower)/(energy*SUB_WINDOW_SIZE/2);
+
+        WindowType type;
+        if (lowSpeedGridScore + lowSpeedHeaderScore > 0.3) {
+            type = lowSpeedHeaderScore > 0.3 ? WindowType.LOW_SPEED_HEADER : WindowType.LOW_SPEED;
+        } else if (highSpeedHeaderScore > 0.5) {
+            type = WindowType.HIGH_SPEED_HEADER;
+        } else if (highSpeedScore > 0.4) {
+            type = WindowType.HIGH_SPEED;
+        } else {
+            type = WindowType.NONE;
+        }
+
+        return new Window(type, cycleCount);
+    }
+
+    /**
+     * Fraction of the energy of "length" samples that's in the frequencies of the filters.
+     */
+    private static double getScore(Goertzel[] goertzels, double energy, int length) {
+        double power = 0;
+        for (Goertzel goertzel : goertzels) {
+            power += goertzel.getPower();
+        }
+        return power/(energy*length/2);
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+import java.nio.ShortBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Feeds blocks of samples to the tape decoders and reports what they find. This holds the
+ * state of the search between blocks, so the tape can be streamed through it in small
+ * pieces. It doesn't number the programs it finds; see {@link ProgramCollector} for that.
+ */
+class TapeReader {
+    /**
+     * Number of samples averaged by the high-pass filter.
+     */
+    static final int HIGH_PASS_FILTER_SIZE = 500;
+    /**
+     * Number of samples filtered and decoded at a time.
+     */
+    static final int BLOCK_SIZE = 4096;
+    /**
+     * Number of samples to filter before the start of a range so that the high-pass filter
+     * and block history are in the same state as if we had read the tape from the beginning.
+     */
+    private static final int WARM_UP = HIGH_PASS_FILTER_SIZE + SignalBlock.HISTORY;
+    private final Consumer<Instance> mInstanceConsumer;
+    private final SignalChain mSignalChain;
+    private final BlockIndex mSkipIndex;
+    private final SignalBlock mBlock = new SignalBlock(BLOCK_SIZE);
+    private int mMaxWarnings = Integer.MAX_VALUE;
+    private DecodeMetrics mMetrics = null;
+    private DecodeProgress mProgress = null;
+    private boolean mRecordTimelines = false;
+    private long mFilterNanos = 0;
+    private long mDecodeNanos = 0;
+    /**
+     * The instance we're currently working on, or null if we're between programs.
+     */
+    private Instance mInstance = null;
+    /**
+     * The decoders still in the running.
+     */
+    private TapeDecoder[] mTapeDecoders;
+
+    /**
+     * What happened while looking for one program on the tape.
+     */
+    static class Instance {
+        /**
+         * The frame where we started looking for the program.
+         */
+        int mSearchStartFrame;
+        /**
+         * The frame where a decoder detected its encoding, or -1 if none did.
+         */
+        int mDetectedFrame = -1;
+        String mDecoderName;
+        TapeDecoderState mState = TapeDecoderState.UNDECIDED;
+        /**
+         * The frame just past the end of the program, if the state is ERROR or FINISHED.
+         */
+        int mEndFrame;
+        byte[] mBinary;
+        /**
+         * Number of bits the decoder decoded, if the state isn't UNDECIDED.
+         */
+        int mBitCount;
+        /**
+         * Every bit of the program, if timelines are recorded and the state isn't UNDECIDED.
+         */
+        BitTimeline mTimeline;
+        /**
+         * Log lines and bad sections from the decoder.
+         */
+        final Results mResults = new Results();
+
+        Instance(int searchStartFrame) {
+            mSearchStartFrame = searchStartFrame;
+        }
+
+        /**
+         * Whether the instance was cut off by the end of the samples.
+         */
+        boolean isOpen() {
+            return mState == TapeDecoderState.UNDECIDED || mState == TapeDecoderState.DETECTED;
+        }
+    }
+
+    /**
+     * @param instanceConsumer gets each instance in tape order once it's complete.
+     * @param signalChain a new chain for conditioning the samples.
+     * @param skipIndex if not null, long silences in it are skipped while searching for a program,
+     * and the search starts over after each one.
+     */
+    TapeReader(Consumer<Instance> instanceConsumer, SignalChain signalChain, BlockIndex skipIndex) {
+        mInstanceConsumer = instanceConsumer;
+        mSignalChain = signalChain;
+        mSkipIndex = skipIndex;
+    }
+
+    /**
+     * Maximum number of warnings to log for each instance.
+     */
+    void setMaxWarnings(int maxWarnings) {
+        mMaxWarnings = maxWarnings;
+    }
+
+    /**
+     * Whether to record every bit of each program in a timeline.
+     */
+    void setRecordTimelines(boolean recordTimelines) {
+        mRecordTimelines = recordTimelines;
+    }
+
+    /**
+     * If not null, gets the time spent filtering and decoding.
+     */
+    void setMetrics(DecodeMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * If not null, gets the frames read, and stops the reader when canceled.
+     */
+    void setProgress(DecodeProgress progress) {
+        mProgress = progress;
+    }
+
+    /**
+     * Decode the samples from startFrame (inclusive) to endFrame (exclusive), then finish.
+     * Instances are only reported for frames in that range. If decoding is canceled, this
+     * returns early without reporting the instance in progress.
+     */
+    void read(ShortBuffer samples, int startFrame, int endFrame) {
+        warmUp(samples, startFrame);
+
+        int frame = startFrame;
+        boolean canceled = false;
+        while (frame < endFrame && !canceled) {
+            int previousFrame = frame;
+            int blockEndFrame = Math.min(frame + BLOCK_SIZE, endFrame);
+            long beforeFilterTime = System.nanoTime();
+            mSignalChain.fill(mBlock, samples, frame, blockEndFrame - frame);
+            long beforeDecodeTime = System.nanoTime();
+            frame = handleBlock(mBlock);
+            long afterDecodeTime = System.nanoTime();
+            mFilterNanos += beforeDecodeTime - beforeFilterTime;
+            mDecodeNanos += afterDecodeTime - beforeDecodeTime;
+
+            // Skipped a silence. Don't bother filtering it either.
+            if (frame > blockEndFrame) {
+                frame = Math.min(frame, endFrame);
+                if (frame < endFrame) {
+                    warmUp(samples, frame);
+                }
+            }
+
+            if (mProgress != null) {
+                mProgress.addFrames(frame - previousFrame);
+                canceled = mProgress.isCanceled();
+            }
+        }
+        if (!canceled) {
+            finish();
+        }
+
+        if (mMetrics != null) {
+            mMetrics.addStageTime(DecodeMetrics.Stage.FILTER, mFilterNanos);
+            mMetrics.addStageTime(DecodeMetrics.Stage.DECODE, mDecodeNanos);
+        }
+        mFilterNanos = 0;
+        mDecodeNanos = 0;
+    }
+
+    /**
+     * Run the filters over the samples just before the frame, without decoding them.
+     */
+    private void warmUp(ShortBuffer samples, int frame) {
+        int warmUpFrame = Math.max(0, frame - WARM_UP);
+        if (warmUpFrame < frame) {
+            long beforeTime = System.nanoTime();
+            mSignalChain.fill(mBlock, samples, warmUpFrame, frame - warmUpFrame);
+            mFilterNanos += System.nanoTime() - beforeTime;
+        }
+    }
+
+    /**
+     * Give all frames of the block to the decoders.
+     *
+     * @return the frame to continue at, which is past the end of the block if the
+     * block ends in a silence that should be skipped.
+     */
+    int handleBlock(SignalBlock block) {
+        int endFrame = block.getEndFrame();
+        int frame = block.getStartFrame();
+        while (frame < endFrame) {
+            if (mInstance == null) {
+                startInstance(frame);
+            }
+            Results results = mInstance.mResults;
+
+            if (mInstance.mState == TapeDecoderState.UNDECIDED) {
+                int stopFrame = endFrame;
+                if (mSkipIndex != null) {
+                    int skipEndFrame = mSkipIndex.getSkipEnd(frame);
+                    if (skipEndFrame > frame) {
+                        // Nothing to find in this silence. Start the search over after it. Parts of the
+                        // tape are indexed with the whole tape's block alignment and quiet threshold,
+                        // so they find the same silences as when reading the whole tape.
+                        startDecoders();
+                        if (skipEndFrame >= endFrame) {
+                            return skipEndFrame;
+                        }
+                        frame = skipEndFrame;
+                        continue;
+                    }
+                    stopFrame = Math.min(stopFrame, mSkipIndex.getNextSkipStart(frame));
+                }
+
+                // Run each decoder until it detects its encoding. Each decoder stops where an
+                // earlier one detected, and ties go to the later decoder, so this picks the
+                // same decoder as giving them each sample in lockstep.
+                int detectedIndex = -1;
+                for (int i = 0; i < mTapeDecoders.length; i++) {
+                    TapeDecoder tapeDecoder = mTapeDecoders[i];
+                    int decoderStopFrame = tapeDecoder.handleSamples(results, block, frame, stopFrame);
+                    if (tapeDecoder.getState() != TapeDecoderState.UNDECIDED) {
+                        stopFrame = decoderStopFrame;
+                        detectedIndex = i;
+                    }
+                }
+                frame = stopFrame;
+
+                // If any has detected, keep only that one and kill the rest.
+                if (detectedIndex != -1) {
+                    TapeDecoder tapeDecoder = mTapeDecoders[detectedIndex];
+                    mInstance.mDetectedFrame = frame - 1;
+                    mInstance.mDecoderName = tapeDecoder.getName();
+                    if (mRecordTimelines) {
+                        mInstance.mTimeline = new BitTimeline();
+                        tapeDecoder.setTimeline(mInstance.mTimeline);
+                    }
+
+                    // Throw away the other decoders.
+                    mTapeDecoders = new TapeDecoder[] {
+                            tapeDecoder
+                    };
+
+                    mInstance.mState = tapeDecoder.getState();
+                }
+            } else {
+                frame = mTapeDecoders[0].handleSamples(results, block, frame, endFrame);
+
+                // See if we should keep going.
+                mInstance.mState = mTapeDecoders[0].getState();
+            }
+
+            if (!mInstance.isOpen()) {
+                mInstance.mEndFrame = frame;
+                endInstance();
+            }
+        }
+
+        return endFrame;
+    }
+
+    /**
+     * Indicate that there are no more samples.
+     */
+    void finish() {
+        if (mInstance != null) {
+            endInstance();
+        }
+    }
+
+    /**
+     * Start looking for a new program at "frame".
+     */
+    private void startInstance(int frame) {
+        mInstance = new Instance(frame);
+        mInstance.mResults.mLog.setMaxWarnings(mMaxWarnings);
+        startDecoders();
+    }
+
+    /**
+     * Start out trying all decoders.
+     */
+    private void startDecoders() {
+        mTapeDecoders = new TapeDecoder[] {
+                new LowSpeedTapeDecoder(),
+                new HighSpeedTapeDecoder()
+        };
+    }
+
+    private void endInstance() {
+        if (mInstance.mState != TapeDecoderState.UNDECIDED) {
+            mInstance.mBinary = mTapeDecoders[0].getProgram();
+            mInstance.mBitCount = mTapeDecoders[0].getBitCount();
+        }
+        mInstanceConsumer.accept(mInstance);
+        mInstance = null;
+        mTapeDecoders = null;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a mono 16-bit WAV file a run of samples at a time. The sizes in the header
+ * aren't known until the end, so the header is written when the writer is closed.
+ */
+class WavWriter implements SampleSink, Closeable {
+    /**
+     * Size of the RIFF, fmt, and data chunk headers.
+     */
+    private static final int HEADER_SIZE = 44;
+    /**
+     * Number of samples buffered before writing to the file.
+     */
+    private static final int BUFFER_SIZE = 32*1024;
+    /**
+     * Buffer that the last writer closed on this thread left for the next one, since direct
+     * buffers are slow to allocate and are only freed by the garbage collector. A writer
+     * takes it while open, so writers open at the same time never share a buffer.
+     */
+    private static final ThreadLocal<ByteBuffer> THREAD_BUFFER = new ThreadLocal<>();
+    private final FileChannel mChannel;
+    private final ByteBuffer mBytes;
+    /**
+     * Little-endian view on mBytes.
+     */
+    private final ShortBuffer mShorts;
+    private long mDataSize = 0;
+    private long mWriteNanos = 0;
+
+    WavWriter(File file) throws IOException {
+        mChannel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        mChannel.position(HEADER_SIZE);
+        ByteBuffer bytes = THREAD_BUFFER.get();
+        if (bytes == null) {
+            bytes = ByteBuffer.allocateDirect(BUFFER_SIZE*2).order(ByteOrder.LITTLE_ENDIAN);
+        } else {
+            THREAD_BUFFER.remove();
+        }
+        mBytes = bytes;
+        mShorts = mBytes.asShortBuffer();
+    }
+
+    @Override
+    public void write(short[] samples, int offset, int count) throws IOException {
+        if (mDataSize + count*2L > 0xFFFFFFFFL - HEADER_SIZE) {
+            throw new IllegalStateException("WAV file can't be larger than 4 GB");
+        }
+        mDataSize += count*2;
+
+        while (count > 0) {
+            int length = Math.min(count, mShorts.remaining());
+            mShorts.put(samples, offset, length);
+            offset += length;
+            count -= length;
+            if (!mShorts.hasRemaining()) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Time spent writing to the file so far, in nanoseconds, as opposed to buffering samples.
+     */
+    long getWriteNanos() {
+        return mWriteNanos;
+    }
+
+    /**
+     * Number of samples written so far.
+     */
+    long getFrameCount() {
+        return mDataSize/2;
+    }
+
+    /**
+     * Write the header and close the file. The file is closed even if writing fails.
+     * Closing more than once does nothing. The buffer is left for the next writer on this thread.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!mChannel.isOpen()) {
+            return;
+        }
+        try {
+            writeHeader();
+        } finally {
+            mChannel.close();
+            mBytes.clear();
+            mShorts.clear();
+            THREAD_BUFFER.set(mBytes);
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        flush();
+        long beforeTime = System.nanoTime();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        putId(header, "RIFF");
+        header.putInt((int) (mDataSize + HEADER_SIZE - 8));
+        putId(header, "WAVE");
+        putId(header, "fmt ");
+        header.putInt(16);
+        header.putShort((short) 1); // PCM.
+        header.putShort((short) 1); // Mono.
+        header.putInt(AudioUtils.HZ);
+        header.putInt(AudioUtils.HZ*2); // Bytes per second.
+        header.putShort((short) 2); // Bytes per frame.
+        header.putShort((short) 16); // Bits per sample.
+        putId(header, "data");
+        header.putInt((int) mDataSize);
+        header.flip();
+
+        long position = 0;
+        while (header.hasRemaining()) {
+            position += mChannel.write(header, position);
+        }
+        mWriteNanos += System.nanoTime() - beforeTime;
+    }
+
+    /**
+     * Write the buffered samples to the file.
+     */
+    private void flush() throws IOException {
+        long beforeTime = System.nanoTime();
+        mBytes.position(0);
+        mBytes.limit(mShorts.position()*2);
+        while (mBytes.hasRemaining()) {
+            mChannel.write(mBytes);
+        }
+        mBytes.clear();
+        mShorts.clear();
+        mWriteNanos += System.nanoTime() - beforeTime;
+    }
+
+    private static void putId(ByteBuffer header, String id) {
+        for (int i = 0; i < 4; i++) {
+            header.put((byte) id.charAt(i));
+        }
+    }
+}
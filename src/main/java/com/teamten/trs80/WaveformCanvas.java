@@ -0,0 +1,275 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.awt.Canvas;
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Canvas for browsing the whole tape. The mouse wheel zooms in and out around the pointer,
+ * from the whole tape down to single samples, and dragging pans. The waveform is drawn in
+ * tiles from a {@link WaveformPyramid}, so drawing a tile takes the same time at every zoom
+ * level, and the most recently used tiles are kept. Programs and bad bits are marked on top
+ * as they are decoded. The pyramid is built in the background, so the canvas starts without it.
+ */
+class WaveformCanvas extends Canvas {
+    private static final int TILE_WIDTH = 256;
+    private static final int MAX_TILES = 32;
+    private static final Color BACKGROUND_COLOR = new Color(30, 30, 30);
+    private static final Color PROGRAM_COLOR = new Color(20, 150, 20, 60);
+    private static final Color BAD_BIT_COLOR = new Color(220, 40, 40);
+    private static final Color TEXT_COLOR = Color.YELLOW;
+    /**
+     * The waveform, or null until it has been built.
+     */
+    private WaveformPyramid mPyramid;
+    private final List<Program> mPrograms = new ArrayList<>();
+    /**
+     * Frames of all bad bits, in order.
+     */
+    private int[] mBadFrames = new int[0];
+    /**
+     * Tiles by zoom level and index.
+     */
+    private final Cache<Long, BufferedImage> mTiles = CacheBuilder.newBuilder().maximumSize(MAX_TILES).build();
+    private int mTileHeight = -1;
+    /**
+     * Log of the number of samples per pixel, or -1 to fit the whole tape on the first paint.
+     */
+    private int mLogZoom = -1;
+    /**
+     * Left edge of the view, in pixels at the current zoom level.
+     */
+    private int mLeftPixel = 0;
+    private int mDragX;
+
+    WaveformCanvas() {
+        addMouseWheelListener(e -> zoom(e.getX(), Integer.signum(e.getWheelRotation())));
+        MouseAdapter dragListener = new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                mDragX = e.getX();
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                mLeftPixel += mDragX - e.getX();
+                mDragX = e.getX();
+                repaint();
+            }
+        };
+        addMouseListener(dragListener);
+        addMouseMotionListener(dragListener);
+    }
+
+    /**
+     * Show the waveform, once it has been built.
+     */
+    void setPyramid(WaveformPyramid pyramid) {
+        mPyramid = pyramid;
+        repaint();
+    }
+
+    /**
+     * Mark the program and its bad bits.
+     */
+    void addProgram(Program program) {
+        mPrograms.add(program);
+        addBadSections(program.getBadSections());
+    }
+
+    /**
+     * Mark the bad bits of the sections.
+     */
+    void addBadSections(List<BitSection> badSections) {
+        int[] badFrames = Arrays.copyOf(mBadFrames, mBadFrames.length + badSections.size());
+        for (int i = 0; i < badSections.size(); i++) {
+            // The bad bit is the last of its section.
+            BitSection badSection = badSections.get(i);
+            badFrames[mBadFrames.length + i] = badSection.getStartFrame(badSection.size() - 1);
+        }
+        Arrays.sort(badFrames);
+        mBadFrames = badFrames;
+        repaint();
+    }
+
+    /**
+     * Zoom in (negative steps) or out (positive steps), keeping the frame under "x" in place.
+     */
+    private void zoom(int x, int steps) {
+        if (mLogZoom < 0) {
+            return;
+        }
+        int logZoom = Math.max(0, Math.min(mLogZoom + steps, getMaxLogZoom()));
+        long frame = ((long) mLeftPixel + x) << mLogZoom;
+        mLeftPixel = (int) (frame >> logZoom) - x;
+        mLogZoom = logZoom;
+        repaint();
+    }
+
+    /**
+     * The zoom level that fits the whole tape.
+     */
+    private int getMaxLogZoom() {
+        int logZoom = 0;
+        while (getPixelCount(logZoom) > Math.max(getWidth(), 1)) {
+            logZoom++;
+        }
+        return logZoom;
+    }
+
+    /**
+     * Width of the whole tape at the zoom level.
+     */
+    private int getPixelCount(int logZoom) {
+        return (int) (((long) mPyramid.getFrameCount() + (1L << logZoom) - 1) >> logZoom);
+    }
+
+    private int frameToX(int frame) {
+        return (frame >> mLogZoom) - mLeftPixel;
+    }
+
+    @Override
+    public void update(Graphics g) {
+        // Tiles cover the whole canvas, don't clear it first.
+        paint(g);
+    }
+
+    @Override
+    public void paint(Graphics g) {
+        int width = getWidth();
+        int height = getHeight();
+        if (mPyramid == null) {
+            g.setColor(BACKGROUND_COLOR);
+            g.fillRect(0, 0, width, height);
+            g.setColor(TEXT_COLOR);
+            g.drawString("Reading waveform...", 4, height - 6);
+            return;
+        }
+        if (height != mTileHeight) {
+            mTiles.invalidateAll();
+            mTileHeight = height;
+        }
+        if (mLogZoom < 0) {
+            mLogZoom = getMaxLogZoom();
+        }
+        mLeftPixel = Math.max(0, Math.min(mLeftPixel, getPixelCount(mLogZoom) - width));
+
+        // Waveform.
+        g.setColor(BACKGROUND_COLOR);
+        g.fillRect(0, 0, width, height);
+        for (int tile = mLeftPixel/TILE_WIDTH; tile*TILE_WIDTH < mLeftPixel + width; tile++) {
+            g.drawImage(getTile(tile), tile*TILE_WIDTH - mLeftPixel, 0, null);
+        }
+
+        // Programs.
+        for (Program program : mPrograms) {
+            int startX = frameToX(program.getStartFrame());
+            int endX = frameToX(program.getEndFrame());
+            if (endX >= 0 && startX < width) {
+                g.setColor(PROGRAM_COLOR);
+                g.fillRect(startX, 0, Math.max(endX - startX, 1), height);
+                g.setColor(TEXT_COLOR);
+                g.drawString(program.getTrack() + "-" + program.getCopy(), Math.max(startX, 0) + 4, 14);
+            }
+        }
+
+        // Bad bits, starting with the first one in view.
+        int leftFrame = (int) Math.min((long) mLeftPixel << mLogZoom, Integer.MAX_VALUE);
+        int index = Arrays.binarySearch(mBadFrames, leftFrame);
+        g.setColor(BAD_BIT_COLOR);
+        for (int i = index < 0 ? -index - 1 : index; i < mBadFrames.length; i++) {
+            int x = frameToX(mBadFrames[i]);
+            if (x >= width) {
+                break;
+            }
+            g.drawLine(x, 0, x, height - 1);
+        }
+
+        // Scale.
+        int rightFrame = (int) Math.min((long) (mLeftPixel + width) << mLogZoom, mPyramid.getFrameCount());
+        g.setColor(TEXT_COLOR);
+        g.drawString(String.format("%s to %s, %,d samples per pixel", AudioUtils.frameToTimestamp(leftFrame),
+                AudioUtils.frameToTimestamp(rightFrame), 1 << mLogZoom), 4, height - 6);
+    }
+
+    /**
+     * Get the tile from the cache, or draw it.
+     */
+    private BufferedImage getTile(int tile) {
+        long key = ((long) mLogZoom << 32) | tile;
+        BufferedImage image = mTiles.getIfPresent(key);
+        if (image == null) {
+            image = drawTile(tile);
+            mTiles.put(key, image);
+        }
+        return image;
+    }
+
+    /**
+     * Draw the waveform of the tile at the current zoom level, one vertical line per column.
+     */
+    private BufferedImage drawTile(int tile) {
+        int height = mTileHeight;
+        BufferedImage image = new BufferedImage(TILE_WIDTH, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(BACKGROUND_COLOR);
+        g.fillRect(0, 0, TILE_WIDTH, height);
+
+        // Also get the column before the tile, to join the line to it.
+        int firstColumn = Math.max(tile*TILE_WIDTH - 1, 0);
+        short[] mins = new short[TILE_WIDTH + 1];
+        short[] maxes = new short[TILE_WIDTH + 1];
+        int columnCount = mPyramid.getColumns(mLogZoom, firstColumn, mins, maxes);
+
+        g.setColor(BitSection.LINE_COLOR);
+        for (int i = 0; i < columnCount; i++) {
+            int x = firstColumn + i - tile*TILE_WIDTH;
+            if (x < 0) {
+                continue;
+            }
+
+            // Reach to the previous column so that steep edges are connected.
+            int min = mins[i];
+            int max = maxes[i];
+            if (i > 0) {
+                min = Math.min(min, maxes[i - 1]);
+                max = Math.max(max, mins[i - 1]);
+            }
+            g.drawLine(x, sampleToY(max, height), x, sampleToY(min, height));
+        }
+        g.dispose();
+
+        return image;
+    }
+
+    private static int sampleToY(int sample, int height) {
+        int y = -sample*(height/2)/32768 + height/2;
+        return Math.max(0, Math.min(y, height - 1));
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2019 Lawrence Kesteloot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.teamten.trs80;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Minimum and maximum of the samples of the whole tape at every power-of-two resolution,
+ * so that the tape can be drawn at any zoom level by looking up one value per pixel column.
+ */
+class WaveformPyramid {
+    /**
+     * Log of the number of samples in a bucket of the finest level. Columns of fewer samples
+     * than that are computed from the samples themselves.
+     */
+    private static final int LOG_BASE_BUCKET_SIZE = 6;
+    /**
+     * Number of buckets computed by each parallel task when building a level.
+     */
+    private static final int TASK_BUCKETS = 4096;
+    private final SampleWindows mSampleWindows;
+    /**
+     * Minimum and maximum of each bucket, for each level. The buckets of level n have
+     * 2^(LOG_BASE_BUCKET_SIZE + n) samples.
+     */
+    private final short[][] mMins;
+    private final short[][] mMaxes;
+
+    private WaveformPyramid(SampleWindows sampleWindows, short[][] mins, short[][] maxes) {
+        mSampleWindows = sampleWindows;
+        mMins = mins;
+        mMaxes = maxes;
+    }
+
+    /**
+     * Read the whole tape and build all levels, on all cores.
+     */
+    static WaveformPyramid build(SampleWindows sampleWindows) {
+        List<short[]> minsList = new ArrayList<>();
+        List<short[]> maxesList = new ArrayList<>();
+
+        // Finest level, from the samples.
+        int frameCount = sampleWindows.getFrameCount();
+        int bucketSize = 1 << LOG_BASE_BUCKET_SIZE;
+        int bucketCount = (frameCount + bucketSize - 1)/bucketSize;
+        short[] baseMins = new short[bucketCount];
+        short[] baseMaxes = new short[bucketCount];
+        forEachTask(bucketCount, (firstBucket, endBucket) -> {
+            int firstFrame = firstBucket*bucketSize;
+            short[] samples = sampleWindows.getOriginal(firstFrame, Math.min(endBucket*bucketSize, frameCount));
+            for (int bucket = firstBucket; bucket < endBucket; bucket++) {
+                int start = (bucket - firstBucket)*bucketSize;
+                int end = Math.min(start + bucketSize, samples.length);
+                short min = Short.MAX_VALUE;
+                short max = Short.MIN_VALUE;
+                for (int i = start; i < end; i++) {
+                    min = (short) Math.min(min, samples[i]);
+                    max = (short) Math.max(max, samples[i]);
+                }
+                baseMins[bucket] = min;
+                baseMaxes[bucket] = max;
+            }
+        });
+        short[] mins = baseMins;
+        short[] maxes = baseMaxes;
+        minsList.add(mins);
+        maxesList.add(maxes);
+
+        // Each coarser level from the previous one, until one bucket covers the tape.
+        while (bucketCount > 1) {
+            short[] fineMins = mins;
+            short[] fineMaxes = maxes;
+            int fineBucketCount = bucketCount;
+            bucketCount = (bucketCount + 1)/2;
+            short[] coarseMins = new short[bucketCount];
+            short[] coarseMaxes = new short[bucketCount];
+            forEachTask(bucketCount, (firstBucket, endBucket) -> {
+                for (int bucket = firstBucket; bucket < endBucket; bucket++) {
+                    int fine = bucket*2;
+                    int nextFine = Math.min(fine + 1, fineBucketCount - 1);
+                    coarseMins[bucket] = (short) Math.min(fineMins[fine], fineMins[nextFine]);
+                    coarseMaxes[bucket] = (short) Math.max(fineMaxes[fine], fineMaxes[nextFine]);
+                }
+            });
+            mins = coarseMins;
+            maxes = coarseMaxes;
+            minsList.add(mins);
+            maxesList.add(maxes);
+        }
+
+        return new WaveformPyramid(sampleWindows,
+                minsList.toArray(new short[0][]), maxesList.toArray(new short[0][]));
+    }
+
+    /**
+     * Number of frames in the tape.
+     */
+    int getFrameCount() {
+        return mSampleWindows.getFrameCount();
+    }
+
+    /**
+     * Get the minimum and maximum sample of consecutive columns of 2^logColumnSize samples.
+     * Column c covers frames c*2^logColumnSize (inclusive) to (c + 1)*2^logColumnSize (exclusive).
+     * This takes the same time for every column size.
+     *
+     * @param firstColumn the first column to get, which must not be negative.
+     * @param mins gets the minimum of each column.
+     * @param maxes gets the maximum of each column.
+     * @return the number of columns filled in, fewer than the arrays hold if the tape ends first.
+     */
+    int getColumns(int logColumnSize, int firstColumn, short[] mins, short[] maxes) {
+        int frameCount = getFrameCount();
+        int columnSize = 1 << logColumnSize;
+        int columnCount = (int) Math.max(0, Math.min(mins.length,
+                ((long) frameCount + columnSize - 1)/columnSize - firstColumn));
+
+        if (columnCount == 0) {
+            return 0;
+        }
+
+        int level = logColumnSize - LOG_BASE_BUCKET_SIZE;
+        if (level >= mMins.length) {
+            // Coarser than the whole tape.
+            level = mMins.length - 1;
+            columnCount = Math.min(columnCount, 1);
+        }
+        if (level >= 0) {
+            // Each column is a bucket.
+            System.arraycopy(mMins[level], firstColumn, mins, 0, columnCount);
+            System.arraycopy(mMaxes[level], firstColumn, maxes, 0, columnCount);
+        } else {
+            // Fewer samples per column than per bucket. Look at the samples.
+            int firstFrame = firstColumn*columnSize;
+            short[] samples = mSampleWindows.getOriginal(firstFrame,
+                    (int) Math.min((long) firstFrame + (long) columnCount*columnSize, frameCount));
+            for (int column = 0; column < columnCount; column++) {
+                int start = column*columnSize;
+                int end = Math.min(start + columnSize, samples.length);
+                short min = Short.MAX_VALUE;
+                short max = Short.MIN_VALUE;
+                for (int i = start; i < end; i++) {
+                    min = (short) Math.min(min, samples[i]);
+                    max = (short) Math.max(max, samples[i]);
+                }
+                mins[column] = min;
+                maxes[column] = max;
+            }
+        }
+
+        return columnCount;
+    }
+
+    /**
+     * Something to do for a range of buckets.
+     */
+    private interface Task {
+        void run(int firstBucket, int endBucket);
+    }
+
+    /**
+     * Split the buckets into tasks and run them on all cores.
+     */
+    private static void forEachTask(int bucketCount, Task task) {
+        int taskCount = (bucketCount + TASK_BUCKETS - 1)/TASK_BUCKETS;
+        IntStream.range(0, taskCount).parallel().forEach(i -> {
+            int firstBucket = i*TASK_BUCKETS;
+            task.run(firstBucket, Math.min(firstBucket + TASK_BUCKETS, bucketCount));
+        });
+    }
+}
@@ -18,8 +18,27 @@ package com.teamten.trs80;
 
 import com.google.common.io.ByteStreams;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ShortBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -31,21 +50,556 @@ class CassetteReaderTest {
         }
     }
 
-    private void testReading(String prefix) throws Exception {
-        String wavPathname = prefix + ".wav";
-        String binPathname = prefix + ".bin" ;
+    @Test
+    void parallel() throws Exception {
+        short[] recording = readWavResource("high-1.wav");
+
+        // Make a tape with two copies of two tracks, with a bit of noise and DC offset.
+        int[] gapSeconds = { 2, 12, 3 };
+        int gapFrames = 0;
+        for (int seconds : gapSeconds) {
+            gapFrames += seconds*AudioUtils.HZ;
+        }
+        short[] samples = new short[recording.length*(gapSeconds.length + 1) + gapFrames];
+        int frame = 0;
+        for (int i = 0; i <= gapSeconds.length; i++) {
+            System.arraycopy(recording, 0, samples, frame, recording.length);
+            frame += recording.length;
+            if (i < gapSeconds.length) {
+                frame += gapSeconds[i]*AudioUtils.HZ;
+            }
+        }
+        Random random = new Random(1);
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE,
+                    samples[i] + 300 + (int) (random.nextGaussian()*40)));
+        }
+
+        CassetteReader cassetteReader = new CassetteReader();
+        Results sequentialResults = cassetteReader.parsePrograms(samples);
+        cassetteReader.setParallel(true);
+        Results parallelResults = cassetteReader.parsePrograms(samples);
+
+        assertEquals(sequentialResults.getLog(), parallelResults.getLog());
+        assertSamePrograms(sequentialResults.getPrograms(), parallelResults.getPrograms());
+        assertEquals(2, parallelResults.getPrograms().get(3).getTrack());
+        assertEquals(2, parallelResults.getPrograms().get(3).getCopy());
+        assertTrue(parallelResults.getMetrics().getStageNanos(DecodeMetrics.Stage.DECODE) > 0);
+
+        // Without skipping silences the decoders don't start over at the splits, so the
+        // flag is ignored and the results must still match one pass.
+        cassetteReader.setSkipSilence(false);
+        parallelResults = cassetteReader.parsePrograms(samples);
+        cassetteReader.setParallel(false);
+        assertSamePrograms(cassetteReader.parsePrograms(samples).getPrograms(), parallelResults.getPrograms());
+        assertTrue(parallelResults.getLog().contains("Not decoding in parallel"));
+
+        cassetteReader.setSkipSilence(true);
+        cassetteReader.setNormalizeGain(true);
+        Results normalizedResults = cassetteReader.parsePrograms(samples);
+        cassetteReader.setParallel(true);
+        parallelResults = cassetteReader.parsePrograms(samples);
+        assertSamePrograms(normalizedResults.getPrograms(), parallelResults.getPrograms());
+        assertTrue(parallelResults.getLog().contains("Not decoding in parallel"));
+    }
+
+    /**
+     * Check that two decodings found the same programs in the same places.
+     */
+    private static void assertSamePrograms(List<Program> expectedPrograms, List<Program> actualPrograms) {
+        assertEquals(4, expectedPrograms.size());
+        assertEquals(expectedPrograms.size(), actualPrograms.size());
+        for (int i = 0; i < expectedPrograms.size(); i++) {
+            Program expectedProgram = expectedPrograms.get(i);
+            Program actualProgram = actualPrograms.get(i);
+            assertEquals(expectedProgram.getTrack(), actualProgram.getTrack());
+            assertEquals(expectedProgram.getCopy(), actualProgram.getCopy());
+            assertEquals(expectedProgram.getStartFrame(), actualProgram.getStartFrame());
+            assertArrayEquals(expectedProgram.getBinary(), actualProgram.getBinary());
+        }
+    }
+
+    @Test
+    void blockIndex() throws Exception {
+        // A recording, a long silence, and the recording again, with a bit of noise.
+        short[] recording = readWavResource("high-1.wav");
+        int gapFrames = 12*AudioUtils.HZ;
+        short[] samples = new short[recording.length*2 + gapFrames];
+        System.arraycopy(recording, 0, samples, 0, recording.length);
+        System.arraycopy(recording, 0, samples, recording.length + gapFrames, recording.length);
+        Random random = new Random(2);
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE,
+                    samples[i] + (int) (random.nextGaussian()*40)));
+        }
+        ShortBuffer buffer = ShortBuffer.wrap(samples);
+        BlockIndex tapeBlockIndex = BlockIndex.build(buffer);
+        int silenceFrame = recording.length + gapFrames/2;
+        assertTrue(tapeBlockIndex.getSkipEnd(silenceFrame) > silenceFrame);
+
+        // Parts starting and ending mid-block, in and out of the silence, with the tape's
+        // threshold, skip the same frames as the whole tape.
+        int[][] ranges = {
+                { silenceFrame + 17, samples.length - 5 },
+                { recording.length - 1001, silenceFrame + 300 },
+                { 1, recording.length + 1 },
+        };
+        for (int[] range : ranges) {
+            int fromFrame = range[0];
+            int toFrame = range[1];
+            BlockIndex partBlockIndex = BlockIndex.build(buffer, fromFrame, toFrame,
+                    tapeBlockIndex.getQuietPeakToPeak());
+            for (int frame = fromFrame; frame < toFrame; frame += 97) {
+                assertEquals(Math.min(tapeBlockIndex.getSkipEnd(frame), toFrame),
+                        Math.min(partBlockIndex.getSkipEnd(frame), toFrame));
+                assertEquals(Math.min(tapeBlockIndex.getNextSkipStart(frame), toFrame),
+                        Math.min(partBlockIndex.getNextSkipStart(frame), toFrame));
+            }
+        }
+    }
+
+    @Test
+    void encoders() throws Exception {
+        // Record both programs at both speeds on a worn tape and read them back.
+        List<byte[]> refBinaries = readResources("low-1.bin", "high-1.bin");
+
+        ShortArraySink sink = new ShortArraySink();
+        TapeDegrader degrader = createDegrader(sink, 1, 100, 500);
+        degrader.setFade(0.5);
+        degrader.setWow(0.003);
+        degrader.setFlutter(0.001);
+        for (byte[] refBinary : refBinaries) {
+            LowSpeedTapeEncoder.encode(refBinary, degrader);
+            HighSpeedTapeEncoder.encode(refBinary, degrader);
+        }
+
+        Results results = new CassetteReader().parsePrograms(sink.toArray());
+        List<Program> programs = results.getPrograms();
+        assertEquals(4, programs.size());
+        for (int i = 0; i < programs.size(); i++) {
+            Program program = programs.get(i);
+            assertEquals(1, program.getTrack());
+            assertEquals(i + 1, program.getCopy());
+            assertArrayEquals(refBinaries.get(i/2), program.getBinary());
+        }
+    }
+
+    @Test
+    void tapeMap() throws Exception {
+        byte[] refBinary = readResource("high-1.bin");
+
+        ShortArraySink sink = new ShortArraySink();
+        TapeDegrader degrader = createDegrader(sink, 2, 100, 500);
+        LowSpeedTapeEncoder.encode(refBinary, degrader);
+        HighSpeedTapeEncoder.encode(refBinary, degrader);
+        ShortBuffer samples = ShortBuffer.wrap(sink.toArray());
+
+        // Each recording must be found, and decoding from its seek point must find its program.
+        List<TapeMap.Recording> recordings = TapeMap.scan(samples).getRecordings();
+        assertEquals(2, recordings.size());
+        for (int i = 0; i < recordings.size(); i++) {
+            TapeMap.Recording recording = recordings.get(i);
+            assertEquals(i == 1, recording.isHighSpeed());
+            assertEquals(refBinary.length, recording.getEstimatedByteCount(), refBinary.length*0.05);
+
+            Results results = new Results();
+            new TapeReader(new ProgramCollector(results), SignalChain.create(false), null)
+                    .read(samples, recording.getSeekFrame(), recording.getStopFrame(samples.limit()));
+            assertEquals(1, results.getPrograms().size());
+            assertArrayEquals(refBinary, results.getPrograms().get(0).getBinary());
+        }
+    }
+
+    @Test
+    void quietLowSpeed() throws Exception {
+        byte[] refBinary = readResource("low-1.bin");
+
+        ShortArraySink sink = new ShortArraySink();
+        LowSpeedTapeEncoder.encode(refBinary, sink);
+        short[] loudSamples = sink.toArray();
+
+        // Far below what the high-speed decoder can see, but the silences must still be told apart.
+        Random random = new Random(6);
+        for (double gain : new double[] { 0.01, 0.02, 0.03 }) {
+            short[] samples = new short[loudSamples.length];
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = (short) Math.round(loudSamples[i]*gain + random.nextGaussian()*2);
+            }
+
+            Results results = new CassetteReader().parsePrograms(samples);
+            assertEquals(1, results.getPrograms().size());
+            assertArrayEquals(refBinary, results.getPrograms().get(0).getBinary());
+        }
+    }
+
+    @Test
+    void streamedWavFile(@TempDir Path dir) throws Exception {
+        short[] samples = new short[1000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (i*31);
+        }
+        File wavFile = dir.resolve("streamed.wav").toFile();
+        try (WavWriter wavWriter = new WavWriter(wavFile)) {
+            wavWriter.write(samples, 0, samples.length);
+        }
+
+        // Recorders that stream leave the size of the data chunk as zero or all ones.
+        for (int dataSize : new int[] { 0, 0xFFFFFFFF }) {
+            try (RandomAccessFile file = new RandomAccessFile(wavFile, "rw")) {
+                file.seek(40);
+                file.writeInt(dataSize);
+            }
+            ShortBuffer mapped = AudioUtils.mapWavFile(wavFile);
+            assertEquals(samples.length, mapped.limit());
+            for (int i = 0; i < samples.length; i++) {
+                assertEquals(samples[i], mapped.get(i));
+            }
+        }
+    }
+
+    @Test
+    void bitStream() {
+        // Bytes with start bits, as read from a high-speed tape, with an extra on some bits.
+        Random random = new Random(3);
+        byte[] bytes = new byte[1000];
+        random.nextBytes(bytes);
+        BitStream<String> bitStream = new BitStream<>();
+        List<Boolean> bits = new ArrayList<>();
+        for (int i = 0; i < bytes.length; i++) {
+            bitStream.addBit(false, "start " + i);
+            bits.add(false);
+            for (int j = 7; j >= 0; j--) {
+                boolean bit = (bytes[i] & (1 << j)) != 0;
+                bitStream.addBit(bit, j == 0 ? "end " + i : null);
+                bits.add(bit);
+            }
+        }
+        assertEquals(bits.size(), bitStream.getBitCount());
 
-        InputStream is = getClass().getClassLoader().getResourceAsStream(wavPathname);
-        if (is == null) {
-            fail("Can't find WAV file " + wavPathname);
+        // Bulk reads must match the bits one at a time.
+        for (int i = 0; i < 100; i++) {
+            int count = random.nextInt(65);
+            int index = random.nextInt(bits.size() - count);
+            long expected = 0;
+            for (int j = 0; j < count; j++) {
+                expected = (expected << 1) | (bits.get(index + j) ? 1 : 0);
+            }
+            assertEquals(expected, bitStream.get(index, count));
         }
-        short[] samples = AudioUtils.readWavFile(is, wavPathname);
+        BitStream<String>.Cursor cursor = bitStream.cursor();
+        for (Boolean bit : bits) {
+            assertEquals(bit, cursor.nextBit());
+        }
+        assertFalse(cursor.hasNext());
 
-        is = getClass().getClassLoader().getResourceAsStream(binPathname);
-        if (is == null) {
-            fail("Can't find BIN file " + binPathname);
+        // Stripping the start bits gives back the bytes, and the extras follow their bits.
+        BitStream<String> stripped = bitStream.deleteBits(0, 9);
+        assertArrayEquals(bytes, stripped.toByteArray());
+        for (int i = 0; i < bytes.length; i++) {
+            assertEquals("end " + i, stripped.getExtra(i*8 + 7));
+            assertNull(stripped.getExtra(i*8));
         }
-        byte[] refBinary = ByteStreams.toByteArray(is);
+
+        // Other starts and strides, including a negative start, delete the same bits as one at a time.
+        int[][] deletions = { { 5, 1 }, { 3, 2 }, { 70, 9 }, { -4, 9 }, { 1, 63 }, { 0, 64 }, { 2, 100 } };
+        for (int[] deletion : deletions) {
+            int start = deletion[0];
+            int stride = deletion[1];
+            BitStream<String> deleted = bitStream.deleteBits(start, stride);
+            int newIndex = 0;
+            for (int index = 0; index < bits.size(); index++) {
+                if (index < start || (index - start) % stride != 0) {
+                    assertEquals(bits.get(index), deleted.getBit(newIndex));
+                    assertEquals(bitStream.getExtra(index), deleted.getExtra(newIndex));
+                    newIndex++;
+                }
+            }
+            assertEquals(newIndex, deleted.getBitCount());
+        }
+
+        // Bytes past the end are zero.
+        assertEquals(0, stripped.getByte(bytes.length));
+        assertEquals(0, new BitStream<String>().getByte(3));
+    }
+
+    @Test
+    void bitHistory() throws Exception {
+        // Fewer bits than the capacity, exactly as many, and enough to wrap around.
+        BitHistory bitHistory = new BitHistory(10);
+        int bitCount = 0;
+        for (int size : new int[] { 4, 10, 23 }) {
+            while (bitCount < size) {
+                bitHistory.add(bitCount*10, bitCount*10 + 9, BitType.values()[bitCount % BitType.values().length]);
+                bitCount++;
+            }
+            BitSection bitSection = bitHistory.snapshot();
+            assertEquals(Math.min(size, 10), bitSection.size());
+            assertBits(bitSection, size - bitSection.size());
+        }
+
+        // Sections are written to the cache and read back as they were.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bitHistory.snapshot().write(new DataOutputStream(bytes));
+        BitSection bitSection = BitSection.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(10, bitSection.size());
+        assertBits(bitSection, 13);
+
+        // Bad bit types aren't.
+        byte[] badBytes = bytes.toByteArray();
+        badBytes[4 + 8] = (byte) BitType.values().length;
+        assertThrows(IOException.class,
+                () -> BitSection.read(new DataInputStream(new ByteArrayInputStream(badBytes))));
+    }
+
+    /**
+     * Check that the section has the bits added by {@link #bitHistory()}, starting with the one at the index.
+     */
+    private static void assertBits(BitSection bitSection, int firstIndex) {
+        for (int i = 0; i < bitSection.size(); i++) {
+            int index = firstIndex + i;
+            assertEquals(index*10, bitSection.getStartFrame(i));
+            assertEquals(index*10 + 9, bitSection.getEndFrame(i));
+            assertEquals(BitType.values()[index % BitType.values().length], bitSection.getBitType(i));
+        }
+    }
+
+    @Test
+    void bitTimeline() {
+        // Several checkpoints' worth of bits, some with gaps before them.
+        Random random = new Random(4);
+        int bitCount = 1000;
+        int[] startFrames = new int[bitCount];
+        int[] endFrames = new int[bitCount];
+        BitType[] bitTypes = new BitType[bitCount];
+        BitTimeline timeline = new BitTimeline();
+        BitHistory bitHistory = new BitHistory(30);
+        bitHistory.setTimeline(timeline);
+        int frame = 12345;
+        for (int i = 0; i < bitCount; i++) {
+            if (random.nextInt(10) == 0) {
+                frame += 1 + random.nextInt(5000);
+            }
+            startFrames[i] = frame;
+            endFrames[i] = frame + 10 + random.nextInt(30);
+            bitTypes[i] = BitType.values()[random.nextInt(BitType.values().length)];
+            bitHistory.add(startFrames[i], endFrames[i], bitTypes[i]);
+            frame = endFrames[i];
+        }
+        assertEquals(bitCount, timeline.size());
+
+        // Sections starting before, at, and after checkpoints read back the same bits.
+        int[][] ranges = { { 0, 0 }, { 0, bitCount }, { 255, 257 }, { 256, 300 }, { 300, 700 }, { 999, 1000 } };
+        for (int[] range : ranges) {
+            BitSection bitSection = timeline.getSection(range[0], range[1]);
+            assertEquals(range[1] - range[0], bitSection.size());
+            for (int i = 0; i < bitSection.size(); i++) {
+                int index = range[0] + i;
+                assertEquals(startFrames[index], bitSection.getStartFrame(i));
+                assertEquals(endFrames[index], bitSection.getEndFrame(i));
+                assertEquals(bitTypes[index], bitSection.getBitType(i));
+            }
+        }
+
+        // Frames find their bits.
+        for (int index : new int[] { 0, 1, 255, 256, 257, 511, 512, 700, 999 }) {
+            assertEquals(index, timeline.findBit(endFrames[index]));
+            assertEquals(index + 1, timeline.findBit(endFrames[index] + 1));
+        }
+        assertEquals(0, timeline.findBit(0));
+
+        // The context of the last bits in the history ends a few bits after them, at the end here.
+        BitSection context = timeline.getContext(bitHistory.snapshot());
+        assertEquals(61, context.size());
+        assertEquals(startFrames[bitCount - 61], context.getStartFrame(0));
+        assertEquals(endFrames[bitCount - 1], context.getEndFrame(60));
+        BitSection middle = timeline.getSection(400, 401);
+        context = timeline.getContext(middle);
+        assertEquals(81, context.size());
+        assertEquals(startFrames[340], context.getStartFrame(0));
+        assertEquals(endFrames[420], context.getEndFrame(80));
+    }
+
+    @Test
+    void eventLog() {
+        // A decoder's log with more bad bits than its limit.
+        EventLog decoderLog = new EventLog();
+        decoderLog.setMaxWarnings(2);
+        decoderLog.message("Say \"hi\" \\ \t");
+        for (int i = 0; i < 5; i++) {
+            decoderLog.badBit(100 + i, i, 90);
+        }
+        assertEquals(3, decoderLog.size());
+        String badBitText = "Warning: At bit of wrong value at " + AudioUtils.frameToTimestamp(101)
+                + ", diff = 1, last = " + AudioUtils.frameToTimestamp(90) + "\n";
+        assertEquals("Say \"hi\" \\ \t\n"
+                + "Warning: At bit of wrong value at " + AudioUtils.frameToTimestamp(100)
+                + ", diff = 0, last = " + AudioUtils.frameToTimestamp(90) + "\n"
+                + badBitText, decoderLog.render(EventLog.Format.TEXT, 0));
+        assertEquals("{\"type\":\"message\",\"text\":\"Say \\\"hi\\\" \\\\ \\u0009\"}\n"
+                + "{\"type\":\"badBit\",\"frame\":100,\"diff\":0,\"lastFrame\":90}\n"
+                + "{\"type\":\"badBit\",\"frame\":101,\"diff\":1,\"lastFrame\":90}\n",
+                decoderLog.render(EventLog.Format.JSON, 0));
+        assertEquals(badBitText, decoderLog.render(EventLog.Format.TEXT, 2));
+        assertEquals("", decoderLog.render(EventLog.Format.JSON, 3));
+
+        // Adding it to a log with a lower limit drops more, and notes those the decoder dropped.
+        EventLog log = new EventLog();
+        log.setMaxWarnings(2);
+        log.badStartBit(7, 200, 15);
+        log.addAll(decoderLog);
+        assertEquals(4, log.size());
+        assertEquals("Bad start bit at byte 7, " + AudioUtils.frameToTimestamp(200) + ", cycle size 15.\n"
+                + "Say \"hi\" \\ \t\n"
+                + "Warning: At bit of wrong value at " + AudioUtils.frameToTimestamp(100)
+                + ", diff = 0, last = " + AudioUtils.frameToTimestamp(90) + "\n"
+                + "Suppressed 3 more warnings.\n", log.render(EventLog.Format.TEXT, 0));
+        assertEquals("{\"type\":\"suppressed\",\"count\":3}\n", log.render(EventLog.Format.JSON, 3));
+    }
+
+    @Test
+    void decodeCache(@TempDir Path dir) throws Exception {
+        byte[] refBinary = readResource("high-1.bin");
+
+        ShortArraySink sink = new ShortArraySink();
+        TapeDegrader degrader = createDegrader(sink, 4, 1500, 0);
+        HighSpeedTapeEncoder.encode(refBinary, degrader);
+        LowSpeedTapeEncoder.encode(refBinary, degrader);
+        ShortBuffer samples = ShortBuffer.wrap(sink.toArray());
+
+        // What's loaded must be what was stored, and other parameters must not find it.
+        Results results = new CassetteReader().parsePrograms(samples);
+        DecodeCache cache = new DecodeCache(dir.toFile(), 1024*1024, 1);
+        String key = DecodeCache.getKey(samples, "");
+        assertNull(cache.load(key));
+        cache.store(key, results);
+        assertNull(cache.load(DecodeCache.getKey(samples, "other")));
+        Results cachedResults = cache.load(key);
+        assertNotNull(cachedResults);
+
+        assertEquals(results.getLog(), cachedResults.getLog());
+        assertEquals(results.getBadSections().size(), cachedResults.getBadSections().size());
+        assertEquals(results.getPrograms().size(), cachedResults.getPrograms().size());
+        for (int i = 0; i < results.getPrograms().size(); i++) {
+            Program program = results.getPrograms().get(i);
+            Program cachedProgram = cachedResults.getPrograms().get(i);
+            assertEquals(program.getTrack(), cachedProgram.getTrack());
+            assertEquals(program.getCopy(), cachedProgram.getCopy());
+            assertEquals(program.getStartFrame(), cachedProgram.getStartFrame());
+            assertEquals(program.getBadSections().size(), cachedProgram.getBadSections().size());
+            assertArrayEquals(program.getBinary(), cachedProgram.getBinary());
+        }
+
+        // Same decoders and programs, without the times.
+        String timeLines = "(?m)^(Finished|Decoded|Peak).*\n";
+        assertEquals(results.getMetrics().getSummary(0).replaceAll(timeLines, ""),
+                cachedResults.getMetrics().getSummary(0).replaceAll(timeLines, ""));
+    }
+
+    @Test
+    void tapeIndex(@TempDir Path dir) throws Exception {
+        List<byte[]> refBinaries = readResources("low-1.bin", "high-1.bin");
+
+        // Two tracks of two copies each, far enough apart to be different tracks.
+        File wavFile = dir.resolve("tape.wav").toFile();
+        try (WavWriter wavWriter = new WavWriter(wavFile)) {
+            TapeDegrader degrader = createDegrader(wavWriter, 5, 100, 0);
+            LowSpeedTapeEncoder.encode(refBinaries.get(0), degrader);
+            LowSpeedTapeEncoder.encode(refBinaries.get(0), degrader);
+            short[] silence = new short[12*AudioUtils.HZ];
+            degrader.write(silence, 0, silence.length);
+            HighSpeedTapeEncoder.encode(refBinaries.get(1), degrader);
+            HighSpeedTapeEncoder.encode(refBinaries.get(1), degrader);
+        }
+
+        // Reading the whole tape writes the index, which lets the second track be read by itself.
+        ExecutorService outputExecutor = OutputStage.createExecutor(2);
+        try {
+            PrintStream out = new PrintStream(new ByteArrayOutputStream());
+            String outputPrefix = dir.resolve("T-").toString();
+            Results results = new CassetteReader().readTape(wavFile, outputPrefix, outputExecutor, out);
+            List<Program> programs = results.getPrograms();
+            TapeIndex index = TapeIndex.read(new File(outputPrefix + TapeIndex.FILENAME));
+            List<TapeIndex.Entry> entries = index.getEntries();
+            assertTrue(results.getQuietPeakToPeak() > 0);
+            assertEquals(results.getQuietPeakToPeak(), index.getQuietPeakToPeak());
+            assertEquals(4, programs.size());
+            assertEquals(programs.size(), entries.size());
+            for (int i = 0; i < programs.size(); i++) {
+                assertEquals(programs.get(i).getTrack(), entries.get(i).getTrack());
+                assertEquals(programs.get(i).getCopy(), entries.get(i).getCopy());
+                assertEquals(programs.get(i).getStartFrame(), entries.get(i).getStartFrame());
+            }
+
+            // The metrics have every stage and decoder, and each program with its bad sections.
+            String metrics = new String(Files.readAllBytes(dir.resolve("T-metrics.json")), StandardCharsets.UTF_8);
+            for (DecodeMetrics.Stage stage : DecodeMetrics.Stage.values()) {
+                assertTrue(metrics.matches("(?s).*\"stageSeconds\": \\{[^}]*\"" + stage.getName() + "\": [0-9.E-]+.*"));
+            }
+            Matcher programMatcher = Pattern.compile("\\{ \"track\": (\\d+), \"copy\": (\\d+), "
+                    + "\"decoder\": \"([^\"]*)\", \"bits\": \\d+, \"bytes\": (\\d+), \"badSections\": (\\d+) }")
+                    .matcher(metrics);
+            for (Program program : programs) {
+                assertTrue(programMatcher.find());
+                assertEquals(program.getTrack(), Integer.parseInt(programMatcher.group(1)));
+                assertEquals(program.getCopy(), Integer.parseInt(programMatcher.group(2)));
+                assertEquals(program.getDecoderName(), programMatcher.group(3));
+                assertEquals(program.getBinary().length, Integer.parseInt(programMatcher.group(4)));
+                assertEquals(program.getBadSections().size(), Integer.parseInt(programMatcher.group(5)));
+                assertTrue(metrics.matches("(?s).*\"decoders\": \\{[^]]*\"" + Pattern.quote(program.getDecoderName())
+                        + "\": \\{ \"programs\": [1-9].*"));
+            }
+            assertFalse(programMatcher.find());
+            Matcher heapMatcher = Pattern.compile("\"peakHeapBytes\": (\\d+)").matcher(metrics);
+            assertTrue(heapMatcher.find());
+            assertTrue(Long.parseLong(heapMatcher.group(1)) > 0);
+
+            CassetteReader cassetteReader = new CassetteReader();
+            cassetteReader.setTrack(2);
+            List<Program> trackPrograms = cassetteReader.readTape(wavFile, outputPrefix, outputExecutor, out)
+                    .getPrograms();
+            assertEquals(2, trackPrograms.size());
+            for (int i = 0; i < trackPrograms.size(); i++) {
+                Program program = trackPrograms.get(i);
+                assertEquals(2, program.getTrack());
+                assertEquals(i + 1, program.getCopy());
+                assertEquals(programs.get(i + 2).getStartFrame(), program.getStartFrame());
+                assertArrayEquals(refBinaries.get(1), program.getBinary());
+            }
+            assertTrue(new File(outputPrefix + "track-2-metrics.json").exists());
+
+            // Without the index, the track is found by a map of the tape.
+            cassetteReader = new CassetteReader();
+            cassetteReader.setTrack(2);
+            List<Program> mappedPrograms = cassetteReader.readTape(wavFile, dir.resolve("U-").toString(),
+                    outputExecutor, out).getPrograms();
+            assertEquals(2, mappedPrograms.size());
+            for (int i = 0; i < mappedPrograms.size(); i++) {
+                Program program = mappedPrograms.get(i);
+                assertEquals(2, program.getTrack());
+                assertEquals(i + 1, program.getCopy());
+                assertEquals(programs.get(i + 2).getStartFrame(), program.getStartFrame());
+            }
+
+            // Starting in the middle of a program decodes it whole, with its own number.
+            cassetteReader = new CassetteReader();
+            cassetteReader.setFromFrame(programs.get(1).getStartFrame() + 1000);
+            List<Program> rangePrograms = cassetteReader.readTape(wavFile, outputPrefix, outputExecutor, out)
+                    .getPrograms();
+            assertEquals(3, rangePrograms.size());
+            for (int i = 0; i < rangePrograms.size(); i++) {
+                Program program = rangePrograms.get(i);
+                assertEquals(programs.get(i + 1).getTrack(), program.getTrack());
+                assertEquals(programs.get(i + 1).getCopy(), program.getCopy());
+                assertEquals(programs.get(i + 1).getStartFrame(), program.getStartFrame());
+            }
+        } finally {
+            outputExecutor.shutdown();
+        }
+    }
+
+    private void testReading(String prefix) throws Exception {
+        short[] samples = readWavResource(prefix + ".wav");
+        byte[] refBinary = readResource(prefix + ".bin");
 
         Results results = new CassetteReader().parsePrograms(samples);
         System.out.print(results.getLog());
@@ -55,4 +609,45 @@ class CassetteReaderTest {
         assertEquals(1, program.getCopy());
         assertArrayEquals(refBinary, program.getBinary());
     }
-}
\ No newline at end of file
+
+    /**
+     * The contents of a file in the test resources.
+     */
+    private byte[] readResource(String pathname) throws IOException {
+        try (InputStream is = getClass().getClassLoader().getResourceAsStream(pathname)) {
+            if (is == null) {
+                fail("Can't find resource " + pathname);
+            }
+            return ByteStreams.toByteArray(is);
+        }
+    }
+
+    /**
+     * The contents of each file in the test resources.
+     */
+    private List<byte[]> readResources(String... pathnames) throws IOException {
+        List<byte[]> contents = new ArrayList<>();
+        for (String pathname : pathnames) {
+            contents.add(readResource(pathname));
+        }
+        return contents;
+    }
+
+    /**
+     * The samples of a WAV file in the test resources.
+     */
+    private short[] readWavResource(String pathname) throws Exception {
+        return AudioUtils.readWavFile(new ByteArrayInputStream(readResource(pathname)), pathname);
+    }
+
+    /**
+     * A worn tape that writes to the sink, with the specified noise and DC drift. The seed
+     * makes the wear the same on every run.
+     */
+    private static TapeDegrader createDegrader(SampleSink sink, long seed, double noise, double dcDrift) {
+        TapeDegrader degrader = new TapeDegrader(sink, new Random(seed));
+        degrader.setNoise(noise);
+        degrader.setDcDrift(dcDrift);
+        return degrader;
+    }
+}